@@ -165,6 +165,7 @@ public class AutoGrader {
      * @param	idleThread	the idle thread.
      */
     public void setIdleThread(KThread idleThread) {
+	this.idleThread = idleThread;
     }
 
     /**
@@ -189,6 +190,18 @@ public class AutoGrader {
 	currentThread = thread;
     }
 
+    /**
+     * Notify the autograder that the idle thread is running and no other
+     * thread is ready to run. The idle thread may call this method before
+     * yielding, to skip simulated time up to the next pending interrupt
+     * instead of spinning through every tick in between.
+     */
+    public void idle() {
+	Lib.assertTrue(currentThread == idleThread,
+		       "only the idle thread can skip time");
+	privilege.interrupt.idle();
+    }
+
     /**
      * Notify the autograder that the current thread has finished.
      * <tt>KThread.finish()</tt> <i>must</i> call this method before putting
@@ -196,6 +209,9 @@ public class AutoGrader {
      */
     public void finishingCurrentThread() {
 	privilege.tcb.authorizeDestroy(currentThread);
+
+	if (Machine.processor() != null)
+	    Machine.processor().releaseProfile(currentThread);
     }
 
     /**
@@ -276,4 +292,5 @@ public class AutoGrader {
     }
     
     private KThread currentThread;
+    private KThread idleThread;
 }
@@ -0,0 +1,308 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Saves the state of the whole machine to a file, and later replaces the
+ * state of the machine with the contents of that file. A checkpoint holds the
+ * registers and TLB of every processor core, physical memory, the
+ * statistics, the random number generator, the pending interrupts, and any
+ * kernel state registered with <tt>addState()</tt>. The file is read and
+ * written through a memory mapping, so restoring a checkpoint costs little
+ * more than copying physical memory.
+ *
+ * <p>
+ * Kernel threads cannot be saved. A kernel that wants to skip its boot
+ * sequence should try to <tt>restore()</tt> a checkpoint at the end of that
+ * sequence, and <tt>save()</tt> one at the same point if none exists. Every
+ * thread must then be where it was when the checkpoint was saved, and every
+ * device must have the same kinds of interrupts pending. <tt>UserKernel</tt>
+ * does this just before it starts the shell program, when the
+ * <tt>UserKernel.checkpoint</tt> key names a checkpoint file.
+ */
+public final class Checkpoint {
+    /**
+     * Allocate a new checkpoint device.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Checkpoint(Privilege privilege) {
+	System.out.print(" checkpoint");
+
+	this.privilege = privilege;
+    }
+
+    /**
+     * Kernel state that is saved and restored along with the machine.
+     */
+    public interface State {
+	/**
+	 * Return this state as an array of bytes.
+	 *
+	 * @return	the saved state.
+	 */
+	public byte[] save();
+
+	/**
+	 * Replace this state with one returned by <tt>save()</tt>.
+	 *
+	 * @param	state	the saved state.
+	 */
+	public void restore(byte[] state);
+    }
+
+    /**
+     * Include the specified kernel state in every checkpoint.
+     *
+     * @param	name	a name identifying the state. A checkpoint can only
+     *			be restored if every state it contains has been
+     *			added under the same name.
+     * @param	state	the state to save and restore.
+     */
+    public void addState(String name, State state) {
+	Lib.assertTrue(!states.containsKey(name));
+
+	states.put(name, state);
+    }
+
+    /**
+     * Save the state of the machine to the specified file. Interrupts must be
+     * disabled.
+     *
+     * @param	fileName	the name of the file to save to.
+     */
+    public void save(final String fileName) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	final byte[] data;
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    saveMachine(out);
+	    out.close();
+	    data = bytes.toByteArray();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot save checkpoint");
+	    return;
+	}
+
+	final ByteBuffer memory = memory();
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { write(fileName, data, memory); }
+	    });
+    }
+
+    /**
+     * Replace the state of the machine with the checkpoint in the specified
+     * file. Interrupts must be disabled.
+     *
+     * @param	fileName	the name of the file to restore from.
+     * @return	<tt>true</tt> if the checkpoint was restored, or
+     *		<tt>false</tt> if the file does not exist.
+     */
+    public boolean restore(final String fileName) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+	privilege.doPrivileged(new Runnable() {
+		public void run() { mapped[0] = read(fileName); }
+	    });
+
+	ByteBuffer buffer = mapped[0];
+	if (buffer == null)
+	    return false;
+
+	for (int i=0; i<magic.length; i++)
+	    Lib.assertTrue(buffer.get() == magic[i], "not a Nachos checkpoint");
+	Lib.assertTrue(buffer.getInt() == version,
+		       "unsupported checkpoint version");
+
+	restoreMachine(buffer);
+
+	ByteBuffer memory = memory();
+	Lib.assertTrue(buffer.remaining() == memory.remaining());
+	memory.put(buffer);
+
+	return true;
+    }
+
+    private ByteBuffer memory() {
+	if (Machine.processor() == null)
+	    return ByteBuffer.allocate(0);
+
+	return Machine.processor().getMemoryBuffer();
+    }
+
+    private void saveMachine(DataOutputStream out) throws IOException {
+	Stats stats = privilege.stats;
+	int numCores = (Machine.processor() == null) ? 0 : Machine.numCores();
+
+	out.writeInt(numCores);
+	out.writeInt(memory().capacity());
+
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeLong(stats.idleTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeLong(stats.numTLBHits);
+	out.writeInt(stats.numTLBEvictions);
+	out.writeInt(stats.numWakeups);
+	out.writeLong(stats.totalWakeLatency);
+	out.writeLong(stats.maxWakeLatency);
+	out.writeInt(stats.numTCBThreadsCreated);
+	out.writeInt(stats.numTCBThreadsReused);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+
+	out.writeLong(Lib.getRandomState());
+
+	Machine.interrupt().checkpoint(out);
+	Machine.timer().checkpoint(out);
+	for (int i=0; i<numCores; i++)
+	    Machine.processor(i).checkpoint(out);
+
+	out.writeInt(states.size());
+	for (Map.Entry<String, State> entry : states.entrySet()) {
+	    writeString(out, entry.getKey());
+	    writeBytes(out, entry.getValue().save());
+	}
+    }
+
+    private void restoreMachine(ByteBuffer buffer) {
+	Stats stats = privilege.stats;
+	int numCores = (Machine.processor() == null) ? 0 : Machine.numCores();
+
+	Lib.assertTrue(buffer.getInt() == numCores &&
+		       buffer.getInt() == memory().capacity(),
+		       "checkpoint is from a different machine");
+
+	stats.totalTicks = buffer.getLong();
+	stats.kernelTicks = buffer.getLong();
+	stats.userTicks = buffer.getLong();
+	stats.idleTicks = buffer.getLong();
+	stats.numDiskReads = buffer.getInt();
+	stats.numDiskWrites = buffer.getInt();
+	stats.numConsoleReads = buffer.getInt();
+	stats.numConsoleWrites = buffer.getInt();
+	stats.numPageFaults = buffer.getInt();
+	stats.numTLBMisses = buffer.getInt();
+	stats.numTLBHits = buffer.getLong();
+	stats.numTLBEvictions = buffer.getInt();
+	stats.numWakeups = buffer.getInt();
+	stats.totalWakeLatency = buffer.getLong();
+	stats.maxWakeLatency = buffer.getLong();
+	stats.numTCBThreadsCreated = buffer.getInt();
+	stats.numTCBThreadsReused = buffer.getInt();
+	stats.numPacketsSent = buffer.getInt();
+	stats.numPacketsReceived = buffer.getInt();
+
+	Lib.setRandomState(buffer.getLong());
+
+	Machine.interrupt().restoreCheckpoint(buffer);
+	Machine.timer().restoreCheckpoint(buffer);
+	for (int i=0; i<numCores; i++)
+	    Machine.processor(i).restoreCheckpoint(buffer);
+
+	int numStates = buffer.getInt();
+	for (int i=0; i<numStates; i++) {
+	    String name = readString(buffer);
+	    State state = states.get(name);
+	    Lib.assertTrue(state != null, "checkpoint has unknown state " + name);
+	    state.restore(readBytes(buffer));
+	}
+    }
+
+    private void write(String fileName, byte[] data, ByteBuffer memory) {
+	try {
+	    RandomAccessFile file = new RandomAccessFile(new File(fileName),
+							 "rw");
+	    file.setLength(0);
+
+	    MappedByteBuffer buffer =
+		file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				      magic.length + 4 + data.length +
+				      memory.remaining());
+	    buffer.put(magic);
+	    buffer.putInt(version);
+	    buffer.put(data);
+	    buffer.put(memory);
+	    buffer.force();
+
+	    file.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write checkpoint " + fileName);
+	}
+    }
+
+    private ByteBuffer read(String fileName) {
+	File f = new File(fileName);
+	if (!f.exists())
+	    return null;
+
+	try {
+	    RandomAccessFile file = new RandomAccessFile(f, "r");
+	    ByteBuffer buffer =
+		file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+				      file.length());
+	    file.close();
+	    return buffer;
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot read checkpoint " + fileName);
+	    return null;
+	}
+    }
+
+    static void writeString(DataOutputStream out, String s)
+	throws IOException {
+	out.writeInt(s.length());
+	out.writeBytes(s);
+    }
+
+    static String readString(ByteBuffer buffer) {
+	return new String(readBytes(buffer));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+	throws IOException {
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+	byte[] bytes = new byte[buffer.getInt()];
+	buffer.get(bytes);
+	return bytes;
+    }
+
+    private Privilege privilege;
+
+    private LinkedHashMap<String, State> states =
+	new LinkedHashMap<String, State>();
+
+    private static final byte[] magic = { 'N', 'C', 'K', 'P' };
+    private static final int version = 1;
+}
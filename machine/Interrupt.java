@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +120,48 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    private void idle() {
+	// every tick must be printed and checked when debugging interrupts
+	if (Lib.test(dbgInt) || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long untilDue = pending[0].time - stats.totalTicks;
+	if (untilDue <= Stats.KernelTick)
+	    return;
+
+	// the last tick skipped must leave totalTicks short of the due time
+	long ticks = (untilDue-1) / Stats.KernelTick * Stats.KernelTick;
+
+	stats.kernelTicks += ticks;
+	stats.totalTicks += ticks;
+	stats.idleTicks += ticks;
+
+	Lib.debug(dbgInt, "Idle until time = " + stats.totalTicks);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+	PendingInterrupt toOccur = free;
+	if (toOccur != null)
+	    free = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+	
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +184,36 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksUntilDue() {
+	// every tick must be printed and checked when debugging interrupts
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	long untilDue = pending[0].time - privilege.stats.totalTicks;
+	if (untilDue <= 0)
+	    return 0;
+
+	// the last tick charged must leave totalTicks short of the due time
+	return (untilDue-1) / Stats.UserTick;
+    }
+
+    private void tickUser(long count) {
+	if (count == 0)
+	    return;
+	
+	Lib.assertTrue(count <= userTicksUntilDue());
+	
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+
+	enabled = true;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,39 +222,118 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may schedule another interrupt, reusing this entry
+	    next.handler = null;
+	    next.nextFree = free;
+	    free = next;
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
+
+	    if (trace != null)
+		trace.interrupt(time, type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Record every interrupt handler invoked in the specified trace.
+     *
+     * @param	trace	the trace to record to.
+     */
+    void setTrace(Trace trace) {
+	this.trace = trace;
+    }
+
+    /**
+     * Write the time, order and type of every pending interrupt to a
+     * checkpoint.
+     *
+     * @param	out	the stream to write the checkpoint to.
+     */
+    void checkpoint(DataOutputStream out) throws IOException {
+	out.writeLong(numPendingInterruptsCreated);
+	out.writeInt(numPending);
+
+	PendingInterrupt[] sorted = sortedPending();
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
+	    out.writeLong(toOccur.time);
+	    out.writeLong(toOccur.id);
+	    Checkpoint.writeString(out, toOccur.type);
+	}
+    }
+
+    /**
+     * Reschedule the pending interrupts recorded in a checkpoint. Handlers
+     * cannot be saved, so each recorded interrupt takes the handler of an
+     * interrupt of the same type that is pending now; the checkpoint must
+     * therefore be restored at the point in the boot sequence at which it
+     * was taken.
+     *
+     * @param	buffer	the checkpoint, positioned at the data written by
+     *			<tt>checkpoint()</tt>.
+     */
+    void restoreCheckpoint(ByteBuffer buffer) {
+	Lib.assertTrue(disabled());
+
+	long numCreated = buffer.getLong();
+	int numPending = buffer.getInt();
+
+	Lib.assertTrue(numPending == this.numPending,
+		       "checkpoint has different pending interrupts");
+
+	PendingInterrupt[] unmatched = sortedPending();
+	this.numPending = 0;
+
+	for (int n=0; n<numPending; n++) {
+	    long time = buffer.getLong();
+	    long id = buffer.getLong();
+	    String type = Checkpoint.readString(buffer);
+
+	    PendingInterrupt match = null;
+	    for (int i=0; i<unmatched.length; i++) {
+		if (unmatched[i] != null && unmatched[i].type.equals(type)) {
+		    match = unmatched[i];
+		    unmatched[i] = null;
+		    break;
+		}
+	    }
+
+	    Lib.assertTrue(match != null,
+			   "checkpoint has different pending interrupts");
+
+	    match.time = time;
+	    match.id = id;
+	    add(match);
+	}
+
+	numPendingInterruptsCreated = numCreated;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = sortedPending();
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,14 +341,103 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    private void cancel(Runnable handler) {
+	int kept = 0;
+	for (int i=0; i<numPending; i++) {
+	    PendingInterrupt toOccur = pending[i];
+	    if (toOccur.handler != handler) {
+		pending[kept++] = toOccur;
+		continue;
+	    }
+
+	    Lib.debug(dbgInt, "Cancelling the " + toOccur.type +
+		      " interrupt handler at time = " + toOccur.time);
+
+	    toOccur.handler = null;
+	    toOccur.nextFree = free;
+	    free = toOccur;
 	}
 
+	if (kept == numPending)
+	    return;
+
+	Arrays.fill(pending, kept, numPending, null);
+	numPending = kept;
+
+	// restore the heap order from the bottom up
+	for (int i=numPending/2-1; i>=0; i--)
+	    siftDown(i, pending[i]);
+    }
+
+    /**
+     * Add an interrupt to the pending heap.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	siftUp(numPending++, toOccur);
+    }
+
+    /**
+     * Remove and return the interrupt due first, moving the last interrupt in
+     * the heap down from the root to take its place.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0)
+	    siftDown(0, last);
+
+	return first;
+    }
+
+    /**
+     * Place an interrupt at the specified position in the heap, moving it up
+     * past every interrupt that is due after it.
+     */
+    private void siftUp(int i, PendingInterrupt toOccur) {
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!toOccur.before(pending[parent]))
+		break;
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Place an interrupt at the specified position in the heap, moving it
+     * down past every interrupt that is due before it.
+     */
+    private void siftDown(int i, PendingInterrupt toOccur) {
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    if (child+1 < numPending && pending[child+1].before(pending[child]))
+		child++;
+	    if (!pending[child].before(toOccur))
+		break;
+	    pending[i] = pending[child];
+	    i = child;
+	}
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Return the pending interrupts in the order in which they will occur.
+     */
+    private PendingInterrupt[] sortedPending() {
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	return sorted;
+    }
+
+    private class PendingInterrupt implements Comparable {
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
@@ -225,19 +454,38 @@ public final class Interrupt {
 		return 0;
 	}
 
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
+	}
+
 	long time;
 	String type;
 	Runnable handler;
 
 	private long id;
+
+	/** The next entry in the free list, once this one has occurred. */
+	PendingInterrupt nextFree = null;
     }
     
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
+    /** The trace to record to, or <tt>null</tt> if not tracing. */
+    private Trace trace = null;
+
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /**
+     * The pending interrupts, as a binary min-heap ordered by time and then
+     * by order of scheduling, so the next interrupt due is always
+     * <tt>pending[0]</tt>.
+     */
+    private PendingInterrupt[] pending = new PendingInterrupt[16];
+    private int numPending = 0;
+    /** Entries for interrupts that have occurred, kept for reuse. */
+    private PendingInterrupt free = null;
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +494,24 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public void cancel(Runnable handler) {
+	    Interrupt.this.cancel(handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void tickUser(long count) {
+	    Interrupt.this.tickUser(count);
+	}
+
+	public void idle() {
+	    Interrupt.this.idle();
+	}
     }
 }
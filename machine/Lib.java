@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static CheckpointableRandom random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,7 +41,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new CheckpointableRandom(randomSeed);
     }
     
     /**
@@ -66,6 +66,48 @@ public final class Lib {
 	return random.nextDouble();
     }
 
+    /**
+     * Return the state of the random number generator, so that a checkpoint
+     * can later resume the same sequence of random numbers.
+     *
+     * @return	the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.seed;
+    }
+
+    /**
+     * Restore the state of the random number generator, returned by
+     * <tt>getRandomState()</tt>.
+     *
+     * @param	state	the state of the random number generator.
+     */
+    static void setRandomState(long state) {
+	random.seed = state;
+    }
+
+    /**
+     * The random number generator of <tt>java.util.Random</tt>, with its
+     * state exposed so that it can be checkpointed.
+     */
+    private static class CheckpointableRandom extends Random {
+	CheckpointableRandom(long seed) {
+	    this.seed = (seed ^ multiplier) & mask;
+	}
+
+	protected int next(int bits) {
+	    seed = (seed * multiplier + addend) & mask;
+	    return (int) (seed >>> (48 - bits));
+	}
+
+	long seed;
+
+	private static final long serialVersionUID = 1L;
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
     /**
      * Asserts that <i>expression</i> is <tt>true</tt>. If not, then Nachos
      * exits with an error message.
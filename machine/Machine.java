@@ -97,6 +97,9 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (int i=0; cores != null && i<cores.length; i++)
+	    cores[i].printProfile();
 	terminate();
     }
 
@@ -176,9 +179,31 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+	    int numCores = Config.getInteger("Processor.numCores", 1);
+	    Lib.assertTrue(numCores >= 1);
+
+	    // every core shares the physical memory of core 0
+	    cores = new Processor[numCores];
+	    cores[0] = new Processor(privilege, numPhysPages);
+	    for (int i=1; i<numCores; i++)
+		cores[i] = new Processor(privilege, numPhysPages,
+					 cores[0].getMemoryBuffer(), i);
+
+	    selectCore(0);
 	}				      
 
+	String traceFileName = Config.getString("Machine.trace", null);
+	if (traceFileName != null) {
+	    Trace trace = new Trace(privilege, traceFileName);
+	    
+	    interrupt.setTrace(trace);
+	    for (int i=0; cores != null && i<cores.length; i++)
+		cores[i].setTrace(trace);
+	}
+
+	if (Config.getBoolean("Machine.checkpoint", false))
+	    checkpoint = new Checkpoint(privilege);
+
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
@@ -317,11 +342,65 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor. On a machine with more than one core, this
+     * is the current core, chosen by the last call to <tt>selectCore()</tt>.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the specified MIPS processor core.
+     *
+     * @param	core	the number of the core.
+     * @return	the processor core.
+     */
+    public static Processor processor(int core) {
+	Lib.assertTrue(cores != null && core >= 0 && core < cores.length);
+	
+	return cores[core];
+    }
+
+    /**
+     * Return the number of MIPS processor cores, set by
+     * <tt>Processor.numCores</tt> in the configuration file. A core is a
+     * bank of registers with its own TLB and translation caches; all cores
+     * share one physical memory. Only one core runs at a time, so extra
+     * cores let threads keep their user state on separate banks, but do not
+     * model parallel execution or make anything run sooner.
+     *
+     * @return	the number of processor cores, or 1 if there is no processor.
+     */
+    public static int numCores() {
+	return (cores == null) ? 1 : cores.length;
+    }
+
+    /**
+     * Make the specified core the current core, switching register banks.
+     * Only one core executes at a time, and <tt>processor()</tt> returns
+     * it. The kernel selects the core a thread is bound to before switching
+     * to that thread.
+     *
+     * @param	core	the number of the core to select.
+     */
+    public static void selectCore(int core) {
+	Lib.assertTrue(core >= 0 && core < numCores());
+
+	if (cores == null || cores[core] == processor)
+	    return;
+
+	processor = cores[core];
+	processor.select();
+    }
+    
+    /**
+     * Return the checkpoint device, which saves and restores the state of the
+     * whole machine.
+     *
+     * @return	the checkpoint device, or <tt>null</tt> if
+     *		<tt>Machine.checkpoint</tt> is not set.
+     */
+    public static Checkpoint checkpoint() { return checkpoint; }
     
     /**
      * Return the hardware console.
@@ -355,6 +434,8 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] cores = null;
+    private static Checkpoint checkpoint = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
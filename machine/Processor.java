@@ -4,6 +4,17 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import nachos.threads.KThread;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -29,10 +40,30 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
-	System.out.print(" processor");
+	this(privilege, numPhysPages, null, 0);
+    }
+
+    /**
+     * Allocate a new processor core. Core 0 allocates physical memory; every
+     * other core shares the memory of core 0, but has its own registers, TLB
+     * and exception handler.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	numPhysPages	the number of pages of physical memory.
+     * @param	memory		the physical memory of core 0, or <tt>null</tt>
+     *				to allocate it.
+     * @param	core		the number of this core.
+     */
+    Processor(Privilege privilege, int numPhysPages, ByteBuffer memory,
+	      int core) {
+	if (core == 0)
+	    System.out.print(" processor");
 
 	this.privilege = privilege;
-	privilege.processor = new ProcessorPrivilege();
+	this.core = core;
+	processorPrivilege = new ProcessorPrivilege();
+	privilege.processor = processorPrivilege;
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,9 +76,32 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	if (memory == null) {
+	    Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE/pageSize,
+			   "physical memory must be smaller than 2GB");
+	    
+	    if (Config.getBoolean("Processor.sparseMemory", false))
+		memory = mapSparseMemory(pageSize * numPhysPages);
+	    else
+		memory = ByteBuffer.wrap(new byte[pageSize * numPhysPages]);
+	}
+	memoryView = memory.order(ByteOrder.LITTLE_ENDIAN);
+	mainMemory = memory.hasArray() ? memory.array() : null;
+	decodedPages = new Decoded[numPhysPages][];
+
+	instructionFusion = Config.getBoolean("Processor.instructionFusion",
+					      true);
+	profiling = Config.getBoolean("Processor.profile", false);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    // a load or store may need its own page and the code page at once
+	    Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0,
+			   "TLB size must be a multiple of an associativity "
+			   + "of at least 2");
+	    tlbSets = tlbSize / tlbWays;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -91,13 +145,61 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
+	/* Pick the interpreter once. The traced interpreter performs all of
+	 * the debug checks and printing; the plain one has none of them, and
+	 * is the only one that runs fused pairs.
+	 */
+	Instruction inst;
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble)) {
+	    inst = new TracedInstruction();
+	}
+	else {
+	    inst = new Instruction();
+	    inst.fusing = instructionFusion;
+	}
+
+	if (trace != null) {
+	    inst.trace = trace;
+	    inst.traceContext = numTraceContexts++;
+	}
+
+	if (profiling) {
+	    Object key = profileKey;
+	    if (key == null)
+		key = KThread.currentThread();
+	    profileKey = null;
+	    
+	    inst.profile = profiles.get(key);
+	    if (inst.profile == null) {
+		inst.profile = new Profile(KThread.currentThread().toString());
+		profiles.put(key, inst.profile);
+	    }
+	}
 	
+	/* Instructions that finish before the next interrupt is due are
+	 * charged in one batch. The instruction that brings the interrupt due,
+	 * and any instruction that causes an exception, is ticked on its own,
+	 * after any batch before it has been charged, so that simulated time
+	 * is exactly what it would be if every instruction were ticked. A
+	 * fused pair is only run when both of its instructions fit in the
+	 * batch.
+	 */
 	while (true) {
+	    long horizon = privilege.interrupt.userTicksUntilDue();
+	    long count = 0;
+	    
 	    try {
-		inst.run();
+		while (count < horizon)
+		    count += inst.run(horizon - count > 1);
+
+		privilege.interrupt.tickUser(count);
+		count = 0;
+		
+		inst.run(false);
 	    }
 	    catch (MipsException e) {
+		privilege.interrupt.tickUser(count);
 		e.handle();
 	    }
 
@@ -105,6 +207,152 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Return the number of this processor core. Core 0 is the processor
+     * returned by <tt>Machine.processor()</tt> on a single-core machine.
+     *
+     * @return	the number of this core.
+     */
+    public int getCore() {
+	return core;
+    }
+
+    /**
+     * Prepare this core to become the current core. The kernel may have
+     * changed translation entries while another core was running.
+     */
+    void select() {
+	privilege.processor = processorPrivilege;
+	invalidateTranslations();
+    }
+
+    /**
+     * Record everything this processor does in the specified trace.
+     *
+     * @param	trace	the trace to record to.
+     */
+    void setTrace(Trace trace) {
+	this.trace = trace;
+    }
+
+    /**
+     * Set the key under which the execution profile of the current thread is
+     * kept, if <tt>Processor.profile</tt> is set. Must be called before the
+     * thread calls <tt>run()</tt>. Threads given the same key, such as the
+     * threads of one process, share a profile; a thread given no key has a
+     * profile of its own, kept under the thread itself.
+     *
+     * @param	key	the object the profile belongs to, compared by
+     *			<tt>equals()</tt>.
+     */
+    public void setProfileKey(Object key) {
+	profileKey = key;
+    }
+
+    /**
+     * Print and discard the execution profile kept under the specified key
+     * on every core, if <tt>Processor.profile</tt> is set. The kernel should
+     * call this once the process or thread the key stands for has finished,
+     * so that its profile is not kept until Nachos halts. A thread's own
+     * profile is released when the thread finishes.
+     *
+     * @param	key	the key the profile is kept under.
+     */
+    public void releaseProfile(Object key) {
+	if (!profiling)
+	    return;
+
+	for (int i=0; i<Machine.numCores(); i++) {
+	    Processor processor = Machine.processor(i);
+
+	    Profile profile = processor.profiles.remove(key);
+	    if (profile != null)
+		processor.printProfile(profile);
+	}
+    }
+
+    /**
+     * Print the execution profile of everything that has run user code on
+     * this processor and not been released, if <tt>Processor.profile</tt> is
+     * set. Called by <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (!profiling)
+	    return;
+
+	for (Profile profile : profiles.values())
+	    printProfile(profile);
+    }
+
+    private void printProfile(Profile profile) {
+	System.out.println("Profile of " + profile.name + " on core " + core
+			   + ":");
+	profile.print();
+    }
+
+    /**
+     * Write this core's registers and TLB to a checkpoint. Any delayed load
+     * is completed first. Physical memory, which all cores share, is saved
+     * separately by <tt>Checkpoint</tt>.
+     *
+     * @param	out	the stream to write the checkpoint to.
+     */
+    void checkpoint(DataOutputStream out) throws IOException {
+	finishLoad();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+
+	out.writeInt(asid);
+
+	if (usingTLB) {
+	    out.writeInt(tlbSize);
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry entry = translations[i];
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeByte((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+			      (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0));
+		out.writeInt(entry.asid);
+	    }
+	}
+    }
+
+    /**
+     * Restore this core's registers and TLB from a checkpoint, and discard
+     * everything cached from the state they replace.
+     *
+     * @param	buffer	the checkpoint, positioned at the data written by
+     *			<tt>checkpoint()</tt>.
+     */
+    void restoreCheckpoint(ByteBuffer buffer) {
+	finishLoad();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = buffer.getInt();
+
+	asid = buffer.getInt();
+
+	if (usingTLB) {
+	    Lib.assertTrue(buffer.getInt() == tlbSize,
+			   "checkpoint has a different TLB size");
+	    for (int i=0; i<tlbSize; i++) {
+		int vpn = buffer.getInt();
+		int ppn = buffer.getInt();
+		int flags = buffer.get();
+		translations[i] = new TranslationEntry(vpn, ppn,
+						       (flags & 1) != 0,
+						       (flags & 2) != 0,
+						       (flags & 4) != 0,
+						       (flags & 8) != 0);
+		translations[i].asid = buffer.getInt();
+	    }
+	}
+
+	Arrays.fill(decodedPages, null);
+	invalidateTranslations();
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +423,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateTranslations();
     }
 
     /**
@@ -188,6 +437,35 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB, set by
+     * <tt>Processor.tlbAssociativity</tt>. The TLB is divided into
+     * <tt>getTLBSize() / getTLBAssociativity()</tt> sets, and a virtual page
+     * can only be held by the entries of one set (see
+     * <tt>writeTLBEntry()</tt>). The associativity is at least 2, since an
+     * instruction may need its own page and a data page that map to the same
+     * set. By default the TLB is fully associative.
+     *
+     * @return	the number of entries in each set of the TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the TLB set that can hold the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set that can hold a translation for <tt>vpn</tt>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSet(vpn);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +483,16 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * An entry is stored at exactly the index given, so
+     * <tt>readTLBEntry()</tt> returns it from there. A valid entry must be
+     * written to an index in the set of its virtual page: set <i>s</i> =
+     * <tt>getTLBSet(entry.vpn)</tt> consists of the indices from <i>s</i> *
+     * <tt>getTLBAssociativity()</tt> up to, but not including, (<i>s</i>+1) *
+     * <tt>getTLBAssociativity()</tt>. With the default, fully associative TLB
+     * there is only one set, so any index will do; a kernel that fills the
+     * TLB without regard to sets only works at that associativity. Writing a
+     * valid entry invalidates any other entry in its set that translates the
+     * same virtual page for the same address-space identifier.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +501,56 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	if (entry.valid) {
+	    int first = tlbSet(entry.vpn)*tlbWays;
+	    Lib.assertTrue(number >= first && number < first+tlbWays,
+			   "TLB entry not in the set of its virtual page");
+
+	    TranslationEntry replaced = translations[number];
+	    if (replaced.valid &&
+		(replaced.vpn != entry.vpn || replaced.asid != entry.asid))
+		privilege.stats.numTLBEvictions++;
+
+	    for (int i=first; i<first+tlbWays; i++) {
+		TranslationEntry other = translations[i];
+		if (i != number && other.valid &&
+		    other.vpn == entry.vpn && other.asid == entry.asid)
+		    translations[i] = new TranslationEntry();
+	    }
+	}
+
 	translations[number] = new TranslationEntry(entry);
+	invalidateTranslations();
+    }
+
+    private int tlbSet(int vpn) {
+	return (int) (((long) vpn & 0xFFFFFFFFL) % tlbSets);
+    }
+
+    /**
+     * Set the address-space identifier register. A TLB entry only translates
+     * addresses while its <tt>asid</tt> equals this register, so a kernel
+     * that gives each process its own identifier can switch processes
+     * without flushing the TLB. The register starts at 0, which is also the
+     * identifier of a new <tt>TranslationEntry</tt>.
+     *
+     * @param	asid	the identifier of the address space to run, between
+     *			<tt>0</tt> and <tt>numASIDs - 1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+	invalidateTranslations();
+    }
+
+    /**
+     * Return the contents of the address-space identifier register.
+     *
+     * @return	the identifier of the current address space.
+     */
+    public int getASID() {
+	return asid;
     }
 
     /**
@@ -230,14 +565,91 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Not available if
+     * <tt>Processor.sparseMemory</tt> is set, since no array backs physical
+     * memory then. Kernel code that copies to and from user memory, such as
+     * <tt>UserProcess.readVirtualMemory()</tt>, should use
+     * <tt>getMemoryBuffer()</tt>, which works with either kind of memory.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "sparse physical memory has no array; "
+		       + "use getMemoryBuffer()");
+	
 	return mainMemory;
     }
 
+    /**
+     * Return a little-endian buffer onto physical memory, whatever backs it.
+     * The buffer's position and limit belong to the caller.
+     *
+     * @return	a buffer whose contents are physical memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memoryView.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Return <tt>size</tt> bytes of zeroed memory that the host only commits
+     * as pages are touched, so that a large physical memory costs only what
+     * the kernel uses. The memory is a mapping of a sparse temporary file,
+     * which is deleted at once; the mapping keeps it alive.
+     */
+    private ByteBuffer mapSparseMemory(final int size) {
+	final ByteBuffer[] memory = new ByteBuffer[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			File file = File.createTempFile("nachos", ".mem");
+			RandomAccessFile backing =
+			    new RandomAccessFile(file, "rw");
+			backing.setLength(size);
+			memory[0] = backing.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0, size);
+			backing.close();
+			file.delete();
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("cannot map sparse memory");
+		    }
+		}
+	    });
+
+	return memory[0];
+    }
+
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page. The processor caches the decoded form of every instruction it
+     * fetches, keyed by physical address, and checks each cached entry against
+     * the instruction word in memory before using it. Kernels that overwrite
+     * code through <tt>getMemory()</tt> should nonetheless call this method
+     * so that the stale entries can be reclaimed.
+     *
+     * @param	ppn	the physical page whose cached instructions should be
+     *			discarded.
+     */
+    public void invalidateInstructionCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Invalidate every entry in this processor's TLB, whatever its
+     * address-space identifier.
+     */
+    public void flushTLB() {
+	Lib.assertTrue(usingTLB);
+
+	for (int i=0; i<tlbSize; i++)
+	    translations[i] = new TranslationEntry();
+	invalidateTranslations();
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -281,10 +693,8 @@ public final class Processor {
 
     /**
      * Translate a virtual address into a physical address, using either a
-     * page table or a TLB. Check for alignment, make sure the virtual page is
-     * valid, make sure a read-only page is not being written, make sure the
-     * resulting physical page is valid, and then return the resulting physical
-     * address.
+     * page table or a TLB, printing debug output for the <tt>p</tt> flag.
+     * Same as <tt>quietTranslate()</tt> otherwise.
      *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
@@ -298,16 +708,51 @@ public final class Processor {
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
-	// check alignment
-	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	int paddr;
+	try {
+	    paddr = quietTranslate(vaddr, size, writing);
+	}
+	catch (MipsException e) {
+	    Lib.debug(dbgProcessor, "\t\t" + translationErrors[e.cause]);
+	    throw e;
 	}
 
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	return paddr;
+    }
+
+    /**
+     * Translate a virtual address into a physical address, using either a
+     * page table or a TLB. Check for alignment, make sure the virtual page is
+     * valid, make sure a read-only page is not being written, make sure the
+     * resulting physical page is valid, and then return the resulting physical
+     * address.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int quietTranslate(int vaddr, int size, boolean writing)
+	throws MipsException {
+	// check alignment
+	if ((vaddr & (size-1)) != 0)
+	    throw fault(exceptionAddressError, vaddr);
+
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// try the host translation cache first; every entry came from the TLB
+	int slot = vpn & (hostCacheSize-1);
+	if (writing ? hostWriteVPNs[slot] == vpn : hostReadVPNs[slot] == vpn) {
+	    if (usingTLB)
+		privilege.stats.numTLBHits++;
+	    return hostBases[slot] + offset;
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -316,50 +761,62 @@ public final class Processor {
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw fault(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the entries of the TLB set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    int first = tlbSet(vpn)*tlbWays;
+	    for (int i=first; i<first+tlbWays; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
 		    break;
 		}
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw fault(exceptionTLBMiss, vaddr);
 	    }
+	    privilege.stats.numTLBHits++;
 	}
 
 	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
+	if (entry.readOnly && writing)
+	    throw fault(exceptionReadOnly, vaddr);
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
+	if (ppn < 0 || ppn >= numPhysPages)
+	    throw fault(exceptionBusError, vaddr);
 
 	// set used and dirty bits as appropriate
 	entry.used = true;
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	/* Cache the translation. Both bits are already set, so a hit never
+	 * needs to touch the entry; writes only hit once the dirty bit is set.
+	 */
+	hostBases[slot] = ppn*pageSize;
+	hostReadVPNs[slot] = vpn;
+	hostWriteVPNs[slot] = (entry.dirty && !entry.readOnly) ? vpn : -1;
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	return (ppn*pageSize) + offset;
+    }
+
+    /**
+     * Note that the kernel might have changed the address translation state,
+     * by discarding the host translation cache. The kernel can only run after an exception or inside
+     * an interrupt handler, and both call this before the kernel gets
+     * control, so changes it makes directly to translation entries are never
+     * hidden by the cache.
+     */
+    private void invalidateTranslations() {
+	Arrays.fill(hostReadVPNs, -1);
+	Arrays.fill(hostWriteVPNs, -1);
     }
 
     /**
@@ -378,8 +835,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhys(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +861,86 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	writePhys(translate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of physical memory starting at
+     * <i>paddr</i>, sign-extending values smaller than a word. Same as
+     * <tt>Lib.bytesToInt()</tt>, but a word or halfword is read in a single
+     * access through the little-endian view of memory.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return	the value read.
+     */
+    private int readPhys(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return memoryView.getInt(paddr);
+	case 2:
+	    return memoryView.getShort(paddr);
+	default:
+	    return memoryView.get(paddr);
+	}
+    }
+
+    /**
+     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of physical
+     * memory starting at <i>paddr</i>, and discard the cached instruction
+     * decoded from the word written, if any.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void writePhys(int paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    memoryView.putInt(paddr, value);
+	    break;
+	case 2:
+	    memoryView.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memoryView.put(paddr, (byte) value);
+	    break;
+	}
+
+	Decoded[] page = decodedPages[paddr/pageSize];
+	if (page != null)
+	    page[(paddr%pageSize)/4] = null;
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, fetched
+     * from physical address <i>paddr</i>. The decoded instruction is taken
+     * from the per-page cache if the cached entry was decoded from the same
+     * word; otherwise the word is decoded and the cache is updated.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word.
+     * @return	the decoded instruction.
+     */
+    private Decoded predecode(int paddr, int value) {
+	int ppn = paddr/pageSize;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Decoded[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (paddr%pageSize)/4;
+
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
     }
 
     /**
@@ -491,6 +1024,21 @@ public final class Processor {
 	"overflow     ",
 	"illegal inst "
     };
+
+    /**
+     * How <tt>translate()</tt> describes each exception that a translation
+     * can cause, indexed by cause.
+     */
+    private static final String translationErrors[] = {
+	null,
+	"page fault",
+	"TLB miss",
+	"read-only exception",
+	"bad ppn",
+	"alignment error",
+	null,
+	null
+    };
     
     /** Index of return value register 0. */
     public static final int regV0 = 2;
@@ -526,6 +1074,10 @@ public final class Processor {
 
     /** Provides privilege to this processor. */
     private Privilege privilege;
+    /** Installed in <tt>privilege</tt> while this core is current. */
+    private ProcessorPrivilege processorPrivilege;
+    /** The number of this core. */
+    private int core;
     
     /** MIPS registers accessible to the kernel. */
     private int registers[] = new int[numUserRegisters];
@@ -539,22 +1091,82 @@ public final class Processor {
 
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
+    /** The address-space identifier register. */
+    private int asid = 0;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of entries in each TLB set. */
+    private int tlbWays = 4;
+    /** Number of TLB sets. */
+    private int tlbSets = 1;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * Number of entries in the host translation cache, which maps recently
+     * used virtual pages directly to the physical address of their first
+     * byte. Must be a power of two.
+     */
+    private static final int hostCacheSize = 64;
+    /** The virtual page cached in each slot for reads, or -1. */
+    private int[] hostReadVPNs = newHostTags();
+    /** The virtual page cached in each slot for writes, or -1. */
+    private int[] hostWriteVPNs = newHostTags();
+    /** The physical address of the page cached in each slot. */
+    private int[] hostBases = new int[hostCacheSize];
+
+    private static int[] newHostTags() {
+	int[] tags = new int[hostCacheSize];
+	Arrays.fill(tags, -1);
+	return tags;
+    }
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /** Number of distinct address-space identifiers, as on the R3000. */
+    public static final int numASIDs = 64;
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, or <tt>null</tt> if physical memory is
+     * sparse.
+     */
     private byte[] mainMemory;
+    /** Main memory for user programs, viewed as little-endian. */
+    private ByteBuffer memoryView;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. A page's array is allocated the first time an instruction is
+     * fetched from it.
+     */
+    private Decoded[][] decodedPages;
+
+    /** <tt>true</tt> if common instruction pairs are run as one operation. */
+    private boolean instructionFusion;
+
+    /** <tt>true</tt> if instructions are counted by PC and by opcode. */
+    private boolean profiling;
+    /** The trace to record to, or <tt>null</tt> if not tracing. */
+    private Trace trace = null;
+    /**
+     * The number of trace contexts assigned. Each call to <tt>run()</tt>
+     * starts a new one, on any core.
+     */
+    private static int numTraceContexts = 0;
+    
+    /**
+     * The execution profile of each thread or process that has run user
+     * code, by the key given to <tt>setProfileKey()</tt>.
+     */
+    private LinkedHashMap<Object, Profile> profiles =
+	new LinkedHashMap<Object, Profile>();
+    /** The key for the profile of the next thread to call <tt>run()</tt>. */
+    private Object profileKey = null;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,24 +1178,62 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    invalidateTranslations();
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Record a CPU exception in the processor's fault record and return it,
+     * ready to be thrown.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the fault record.
+     */
+    private MipsException fault(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	fault.cause = cause;
+	fault.hasBadVAddr = false;
+	return fault;
+    }
+
+    /**
+     * Record a CPU exception involving a bad virtual address in the
+     * processor's fault record and return it, ready to be thrown.
+     *
+     * @param	cause		the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the fault record.
+     */
+    private MipsException fault(int cause, int badVAddr) {
+	fault(cause);
+
+	fault.hasBadVAddr = true;
+	fault.badVAddr = badVAddr;
+	return fault;
+    }
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+    /**
+     * The processor's only fault record. A user thread cannot raise a second
+     * exception until its first has been copied into the cause and BadVAddr
+     * registers by <tt>handle()</tt>, so a single record can be shared by
+     * every thread and no exception is ever allocated while running user code.
+     */
+    private MipsException fault = new MipsException();
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    /**
+     * A CPU exception. Instances are reused, so no stack trace is captured
+     * when one is created.
+     */
+    private class MipsException extends Exception {
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
+	    if (trace != null)
+		trace.exception(cause, registers[regV0]);
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -593,6 +1243,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    invalidateTranslations();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -608,81 +1259,314 @@ public final class Processor {
     }	
 
     private class Instruction {
-	public void run() throws MipsException {
+	/**
+	 * Run the instruction at the PC, or the fused pair starting there.
+	 *
+	 * @param	fuse	<tt>true</tt> if two instructions may be run.
+	 * @return	the number of instructions run.
+	 */
+	public int run(boolean fuse) throws MipsException {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
-	    decode();
-	    execute();
-	    writeBack();
-	}	
+	    Decoded decoded = predecode(paddr, value);
+
+	    int pc = registers[regPC];
+	    if (profile != null)
+		profile.count(pc, decoded);
+
+	    if (fuse && fusing && runFused(decoded)) {
+		if (profile != null)
+		    profile.count(pc+4, decoded.next);
+		if (trace != null) {
+		    traceCommit(pc);
+		    trace.fetch(pc+4);
+		}
+		return 2;
+	    }
+	    
+	    decode(decoded);
+	    try {
+		execute();
+		writeBack();
+	    }
+	    catch (MipsException e) {
+		// a system call completes by trapping; any other exception
+		// means the instruction will be retried or never finishes
+		if (trace != null && e.cause == exceptionSyscall)
+		    traceCommit(pc);
+		accessPending = false;
+		throw e;
+	    }
+	    if (trace != null)
+		traceCommit(pc);
+	    return 1;
+	}
 
-	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
+	/**
+	 * Record the fetch of the instruction at <i>pc</i>, which has just
+	 * completed, followed by the load or store it made. Nothing is
+	 * recorded for an instruction that faults, so an instruction that is
+	 * retried after a page fault appears in the trace once.
+	 *
+	 * @param	pc	the virtual address of the instruction.
+	 */
+	private void traceCommit(int pc) {
+	    trace.context(traceContext);
+	    trace.fetch(pc);
+	    if (accessPending) {
+		trace.access(accessAddr, accessSize, accessWriting);
+		accessPending = false;
+	    }
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	/**
+	 * Note a load or store that was translated successfully, to be
+	 * recorded if the instruction that made it completes.
+	 */
+	void noteAccess(int vaddr, int size, boolean writing) {
+	    accessPending = true;
+	    accessAddr = vaddr;
+	    accessSize = size;
+	    accessWriting = writing;
+	}
+
+	/**
+	 * Run the instruction just fetched together with the one after it, if
+	 * the two form a fused pair and the second is the next to execute
+	 * (that is, the first is not in a taken branch's delay slot). Neither
+	 * instruction of a pair can cause an exception once the first has
+	 * read memory, so the pair either runs completely or not at all.
+	 *
+	 * @param	first	the instruction just fetched.
+	 * @return	<tt>true</tt> if the pair was run.
+	 * @exception	MipsException	if the first instruction is a load that
+	 *				caused an exception, in which case
+	 *				neither instruction has run.
+	 */
+	private boolean runFused(Decoded first) throws MipsException {
+	    if (first.fusion == Decoded.fusionUnknown)
+		pair(first, paddr);
+
+	    if (first.fusion == Decoded.fusionNone ||
+		registers[regNextPC] != registers[regPC]+4)
+		return false;
+
+	    Decoded second = first.next;
+	    
+	    // the second word may have been overwritten since the pair formed
+	    if (memoryView.getInt(paddr+4) != second.value) {
+		first.fusion = Decoded.fusionUnknown;
+		return false;
+	    }
+
+	    int pc = registers[regPC];
+	    
+	    // first instruction
+	    if (first.fusion == Decoded.fusionLoadUse) {
+		int addr = registers[first.rs] + first.imm;
+		int value = readMem(addr, first.size);
 
-	    value = readMem(registers[regPC], 4);
+		if (!Lib.test(Mips.UNSIGNED, first.flags))
+		    value = Lib.extend(value, 0, first.size*8);
+		
+		delayedLoad(first.dstReg, value, 0xFFFFFFFF);
+	    }
+	    else {
+		int result = simple(first);
+		
+		finishLoad();
+		if (first.dstReg != 0)
+		    registers[first.dstReg] = result;
+	    }
+
+	    // second instruction, which sees the first's results
+	    int nextPC = pc+12;
+	    if (first.fusion == Decoded.fusionCompareBranch) {
+		boolean equal = (registers[second.rs] == registers[second.rt]);
+		if (equal == (second.operation == Mips.BEQ))
+		    nextPC = pc+8 + (second.imm<<2);
+		
+		finishLoad();
+	    }
+	    else {
+		int result = simple(second);
+
+		finishLoad();
+		if (second.dstReg != 0)
+		    registers[second.dstReg] = result;
+	    }
+
+	    registers[regPC] = pc+8;
+	    registers[regNextPC] = nextPC;
+
+	    // the second fetch would have hit the same TLB entry as the first
+	    if (usingTLB)
+		privilege.stats.numTLBHits++;
+
+	    return true;
 	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
+	/**
+	 * Find the instruction after <i>first</i>, which was fetched from
+	 * physical address <i>paddr</i>, and record whether the two form one
+	 * of the fused pairs:
+	 *
+	 * <ul>
+	 * <li><tt>lui</tt> followed by <tt>ori</tt> or <tt>addiu</tt> of the
+	 * same register, building a 32-bit constant
+	 * <li>a load followed by a simple operation
+	 * <li><tt>slt</tt> followed by <tt>beq</tt> or <tt>bne</tt> testing
+	 * its result
+	 * </ul>
+	 *
+	 * @param	first	the first instruction.
+	 * @param	paddr	the physical address of the first instruction.
+	 */
+	private void pair(Decoded first, int paddr) {
+	    first.fusion = Decoded.fusionNone;
+	    first.next = null;
+
+	    // the pair must be physically contiguous
+	    if ((paddr+4) % pageSize == 0)
+		return;
+
+	    Decoded second =
+		predecode(paddr+4, memoryView.getInt(paddr+4));
+
+	    if (first.operation == Mips.LUI && isSimple(second) &&
+		Lib.test(Mips.SRC2IMM, second.flags) &&
+		(second.operation == Mips.OR || second.operation == Mips.ADD) &&
+		second.rs == first.dstReg) {
+		first.fusion = Decoded.fusionConstant;
+	    }
+	    else if (first.operation == Mips.LOAD && isSimple(second)) {
+		first.fusion = Decoded.fusionLoadUse;
+	    }
+	    else if (first.operation == Mips.SLT && isSimple(first) &&
+		     (second.operation == Mips.BEQ ||
+		      second.operation == Mips.BNE) &&
+		     second.flags == Mips.BRANCH &&
+		     (second.rs == first.dstReg || second.rt == first.dstReg)) {
+		first.fusion = Decoded.fusionCompareBranch;
+	    }
+
+	    if (first.fusion != Decoded.fusionNone)
+		first.next = second;
+	}
+
+	/**
+	 * Test whether the specified instruction is a simple operation: one
+	 * that only writes a register, and can never cause an exception.
+	 *
+	 * @param	decoded	the instruction.
+	 * @return	<tt>true</tt> if the instruction is a simple operation.
+	 */
+	private boolean isSimple(Decoded decoded) {
+	    switch (decoded.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+	    case Mips.LUI:
+		return (decoded.flags & (Mips.DST|Mips.OVERFLOW)) == Mips.DST;
 	    default:
-		info = Mips.optable[op];
-		break;
+		return false;
 	    }
+	}
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	/**
+	 * Compute the result of a simple operation, exactly as
+	 * <tt>decode()</tt> and <tt>execute()</tt> would.
+	 *
+	 * @param	decoded	the simple operation.
+	 * @return	the value to write to its destination register.
+	 */
+	private int simple(Decoded decoded) {
+	    long src1, src2;
+	    
+	    if (Lib.test(Mips.SRC1SH, decoded.flags))
+		src1 = decoded.sh;
+	    else
+		src1 = registers[decoded.rs];
+
+	    if (Lib.test(Mips.SRC2IMM, decoded.flags))
+		src2 = decoded.imm;
+	    else
+		src2 = registers[decoded.rt];
+
+	    if (Lib.test(Mips.UNSIGNED, decoded.flags)) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    switch (decoded.operation) {
+	    case Mips.ADD:
+		return (int) (src1 + src2);
+	    case Mips.SUB:
+		return (int) (src1 - src2);
+	    case Mips.SLL:
+		return (int) (src2 << (src1&0x1F));
+	    case Mips.SRA:
+		return (int) (src2 >> (src1&0x1F));
+	    case Mips.SRL:
+		return (int) (src2 >>> (src1&0x1F));
+	    case Mips.SLT:
+		return (src1<src2) ? 1 : 0;
+	    case Mips.AND:
+		return (int) (src1 & src2);
+	    case Mips.OR:
+		return (int) (src1 | src2);
+	    case Mips.NOR:
+		return (int) ~(src1 | src2);
+	    case Mips.XOR:
+		return (int) (src1 ^ src2);
+	    case Mips.LUI:
+		return decoded.imm << 16;
+	    default:
+		Lib.assertNotReached();
+		return 0;
+	    }
+	}
+
+	boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	void fetch() throws MipsException {
+	    paddr = quietTranslate(registers[regPC], 4, false);
+	    value = memoryView.getInt(paddr);
+	}
+	
+	void decode(Decoded decoded) {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1577,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,12 +1596,25 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
+	}
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
+	int readMem(int vaddr, int size) throws MipsException {
+	    int paddr = quietTranslate(vaddr, size, false);
+	    if (trace != null)
+		noteAccess(vaddr, size, false);
+	    
+	    return readPhys(paddr, size);
 	}
 
-	private void print() {
+	void writeMem(int vaddr, int size, int value) throws MipsException {
+	    int paddr = quietTranslate(vaddr, size, true);
+	    if (trace != null)
+		noteAccess(vaddr, size, true);
+	    
+	    writePhys(paddr, size, value);
+	}
+
+	void print() {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -845,7 +1737,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	void execute() throws MipsException {
 	    int value;
 	    int preserved;
 	    
@@ -862,15 +1754,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw fault(exceptionOverflow);
+		
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw fault(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -939,7 +1829,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw fault(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,17 +1899,17 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw fault(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
 	    }
 	}
 
-	private void writeBack() throws MipsException {
+	void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw fault(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1032,27 +1922,30 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
-	    }
-
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
 	    }
 
 	    advancePC(nextPC);
-
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("\n");
 	}
     
+	// true if fused pairs are run as one operation
+	boolean fusing;
+
+	// the current thread's execution profile, if profiling
+	Profile profile;
+
+	// the trace to record to, if tracing, and this thread's context in it
+	Trace trace;
+	int traceContext;
+
+	// the load or store of the instruction being run, until it completes
+	boolean accessPending = false;
+	int accessAddr, accessSize;
+	boolean accessWriting;
+	
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1956,289 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An <tt>Instruction</tt> that performs all of the processor's debug
+     * checks and printing. Used in place of <tt>Instruction</tt> when any of
+     * the processor's debug flags are enabled.
+     */
+    private class TracedInstruction extends Instruction {
+	void fetch() throws MipsException {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    // print the same lines readMem() would for the fetch
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false);
+	    value = memoryView.getInt(paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+	}
+
+	void decode(Decoded decoded) {
+	    super.decode(decoded);
+
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
+
+	int readMem(int vaddr, int size) throws MipsException {
+	    int value = Processor.this.readMem(vaddr, size);
+	    if (trace != null)
+		noteAccess(vaddr, size, false);
+
+	    return value;
+	}
+
+	void writeMem(int vaddr, int size, int value) throws MipsException {
+	    Processor.this.writeMem(vaddr, size, value);
+	    if (trace != null)
+		noteAccess(vaddr, size, true);
+	}
+
+	void writeBack() throws MipsException {
+	    super.writeBack();
+	    
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		if (Lib.test(dbgFullDisassemble)) {
+		    System.out.print("#0x" + Lib.toHexString((int) dst));
+		    if (test(Mips.DELAYEDLOAD))
+			System.out.print(" (delayed load)");
+		}
+	    }
+
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("\n");
+	}
+    }
+
+    /**
+     * The fields of an instruction word that do not depend on the contents of
+     * the registers. These are computed once per instruction word and cached
+     * by <tt>predecode()</tt>.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		opcode = Mips.specialBase + func;
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		opcode = Mips.regimmBase + rt;
+		break;
+	    default:
+		info = Mips.optable[op];
+		opcode = op;
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+	
+	int op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg;
+
+	/**
+	 * The index of this instruction's entry in the opcode tables, as
+	 * understood by <tt>Mips.mnemonic()</tt>.
+	 */
+	int opcode;
+
+	/** Whether this and the next instruction form a fused pair, and how. */
+	int fusion = fusionUnknown;
+	/** The second instruction of the fused pair starting here, if any. */
+	Decoded next = null;
+
+	static final int
+	    fusionUnknown	= 0,
+	    fusionNone		= 1,
+	    fusionConstant	= 2,
+	    fusionLoadUse	= 3,
+	    fusionCompareBranch	= 4;
+    }
+
+    /**
+     * Counts of the instructions executed under one profile key, by virtual
+     * PC and by opcode. The PC counts are kept in an open-addressed hash
+     * table of primitive arrays, so counting an instruction allocates
+     * nothing.
+     */
+    private static class Profile {
+	/**
+	 * Allocate a new, empty profile.
+	 *
+	 * @param	name	the name to print the profile under.
+	 */
+	Profile(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Count one execution of the specified instruction.
+	 *
+	 * @param	pc	the virtual address of the instruction.
+	 * @param	decoded	the instruction.
+	 */
+	void count(int pc, Decoded decoded) {
+	    opcodeHits[decoded.opcode]++;
+
+	    int mask = pcs.length - 1;
+	    int slot = (pc>>>2) & mask;
+
+	    while (pcHits[slot] != 0 && pcs[slot] != pc)
+		slot = (slot+1) & mask;
+
+	    if (pcHits[slot]++ == 0) {
+		pcs[slot] = pc;
+		if (++numPCs*2 > pcs.length)
+		    grow();
+	    }
+	}
+
+	private void grow() {
+	    int[] oldPCs = pcs;
+	    long[] oldHits = pcHits;
+
+	    pcs = new int[oldPCs.length*2];
+	    pcHits = new long[oldPCs.length*2];
+
+	    int mask = pcs.length - 1;
+	    for (int i=0; i<oldPCs.length; i++) {
+		if (oldHits[i] == 0)
+		    continue;
+
+		int slot = (oldPCs[i]>>>2) & mask;
+		while (pcHits[slot] != 0)
+		    slot = (slot+1) & mask;
+
+		pcs[slot] = oldPCs[i];
+		pcHits[slot] = oldHits[i];
+	    }
+	}
+
+	/**
+	 * Print the most frequently executed PCs and the number of times each
+	 * opcode was executed, both in decreasing order.
+	 */
+	void print() {
+	    long total = 0;
+	    for (int i=0; i<opcodeHits.length; i++)
+		total += opcodeHits[i];
+
+	    System.out.println("  instructions executed: " + total);
+	    if (total == 0)
+		return;
+
+	    System.out.println("  hottest PCs:");
+	    int[] order = byHits(pcHits);
+	    for (int i=0; i<order.length && i<maxPCsPrinted; i++) {
+		long hits = pcHits[order[i]];
+		System.out.println("    PC=0x" + Lib.toHexString(pcs[order[i]])
+				   + "\t" + hits + "\t"
+				   + (hits*100/total) + "%");
+	    }
+
+	    System.out.println("  opcodes:");
+	    order = byHits(opcodeHits);
+	    for (int i=0; i<order.length; i++) {
+		long hits = opcodeHits[order[i]];
+		System.out.println("    " + Mips.mnemonic(order[i]) + "\t"
+				   + hits + "\t" + (hits*100/total) + "%");
+	    }
+	}
+
+	/**
+	 * Return the indices of the nonzero entries of <i>hits</i>, ordered by
+	 * decreasing value.
+	 */
+	private static int[] byHits(final long[] hits) {
+	    Integer[] order = new Integer[hits.length];
+	    int count = 0;
+	    for (int i=0; i<hits.length; i++) {
+		if (hits[i] != 0)
+		    order[count++] = Integer.valueOf(i);
+	    }
+
+	    Arrays.sort(order, 0, count, new java.util.Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			long diff = hits[b.intValue()] - hits[a.intValue()];
+			return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+		    }
+		});
+
+	    int[] result = new int[count];
+	    for (int i=0; i<count; i++)
+		result[i] = order[i].intValue();
+	    return result;
+	}
+	
+	/** The name the profile is printed under. */
+	final String name;
+
+	private int[] pcs = new int[initialPCSlots];
+	private long[] pcHits = new long[initialPCSlots];
+	private int numPCs = 0;
+	private long[] opcodeHits = new long[Mips.numOpcodes];
+
+	private static final int initialPCSlots = 1024;
+	private static final int maxPCsPrinted = 20;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1149,6 +2325,34 @@ public final class Processor {
 	    TARGET		= 'j',
 	    RETURNADDRESS	= 'r';	// rd, or none if rd=31; can't be last
 
+	/**
+	 * Bases of the opcode indices given to the special and reg-imm tables;
+	 * the opcode index of an entry in <tt>optable</tt> is its op field.
+	 */
+	static final int
+	    specialBase = 64,
+	    regimmBase = 128,
+	    numOpcodes = 160;
+
+	/**
+	 * Return the mnemonic of the instruction with the specified opcode
+	 * index.
+	 *
+	 * @param	opcode	the opcode index of the instruction.
+	 * @return	the mnemonic of the instruction.
+	 */
+	static String mnemonic(int opcode) {
+	    Mips info;
+	    if (opcode >= regimmBase)
+		info = regimmtable[opcode - regimmBase];
+	    else if (opcode >= specialBase)
+		info = specialtable[opcode - specialBase];
+	    else
+		info = optable[opcode];
+
+	    return info.name.substring(0, info.name.indexOf(' '));
+	}
+
 	static final Mips[] optable = {
 	    new Mips(),						// special
 	    new Mips(),						// reg-imm
@@ -21,12 +21,25 @@ public final class Stats {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
 			   + ", user " + userTicks);
+	if (idleTicks > 0 && Machine.timer().isTickless())
+	    System.out.println("Idle: ticks skipped " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits > 0 || numTLBMisses > 0)
+	    System.out.println("TLB: hits " + numTLBHits
+			       + ", misses " + numTLBMisses
+			       + ", evictions " + numTLBEvictions);
+	if (numWakeups > 0)
+	    System.out.println("Wakeups: " + numWakeups
+			       + ", latency mean " + totalWakeLatency/numWakeups
+			       + ", max " + maxWakeLatency);
+	if (numTCBThreadsReused > 0)
+	    System.out.println("TCB threads: created " + numTCBThreadsCreated
+			       + ", reused " + numTCBThreadsReused);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -44,6 +57,13 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The amount of kernel time that passed without being simulated tick by
+     * tick, because no thread was ready to run (see
+     * <tt>AutoGrader.idle()</tt>). This time is included in
+     * <tt>kernelTicks</tt>, and is only printed when the timer is tickless.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,6 +77,35 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of translations the TLB has supplied. */
+    public long numTLBHits = 0;
+    /**
+     * The total number of valid TLB entries replaced by entries for another
+     * virtual page.
+     */
+    public int numTLBEvictions = 0;
+    /**
+     * The total number of sleeping threads woken, as recorded with
+     * <tt>Timer.recordWakeup()</tt>.
+     */
+    public int numWakeups = 0;
+    /**
+     * The total time by which woken threads overshot the times they were
+     * waiting for.
+     */
+    public long totalWakeLatency = 0;
+    /**
+     * The longest time by which a woken thread overshot the time it was
+     * waiting for.
+     */
+    public long maxWakeLatency = 0;
+    /** The total number of JVM threads created to run TCBs. */
+    public int numTCBThreadsCreated = 0;
+    /**
+     * The total number of TCBs run by a JVM thread taken from the pool of
+     * destroyed TCBs' threads.
+     */
+    public int numTCBThreadsReused = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
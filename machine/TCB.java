@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,18 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration, the JVM threads
+ * are virtual threads, which need far less memory than platform threads, so
+ * that many more Nachos threads can exist at once. Virtual threads require
+ * Java 21 or later. Either way, only one TCB runs at a time. The number of
+ * TCBs that can exist at once is limited by <tt>TCB.maxThreads</tt>.
+ *
+ * <p>
+ * If <tt>TCB.poolSize</tt> is set in the configuration, the JVM thread of a
+ * destroyed TCB is kept, up to that many at once, to run the next TCB to
+ * start, rather than a new JVM thread being created for it.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +55,24 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (virtualThreads) {
+	    // look these up reflectively, so Nachos still runs on older JVMs
+	    try {
+		ofVirtual = Thread.class.getMethod("ofVirtual");
+		unstarted = Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("virtual threads require Java 21 or later");
+	    }
+	}
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtualThreads ? maxVirtualThreads
+					: maxThreads);
+	poolSize = Config.getInteger("TCB.poolSize", 0);
     }
     
     /**
@@ -66,7 +99,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +119,37 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We take one left by a destroyed TCB from the pool if we can, and
+	     * otherwise make a new one. Creating Java threads is a privileged
+	     * operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    if (!carrierPool.isEmpty()) {
+		carrier = carrierPool.removeLast();
+		privilege.stats.numTCBThreadsReused++;
+	    }
+	    else {
+		final Carrier newCarrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newCarrier.thread = newJavaThread(newCarrier);
+			}
+		    });
+		carrier = newCarrier;
+		privilege.stats.numTCBThreadsCreated++;
+	    }
+
+	    javaThread = carrier.thread;
+
+	    /* The Java thread hasn't yet started running this TCB, but we need
+	     * to get it blocking in yield(). We do this by temporarily turning
+	     * off the current TCB, handing this TCB to the Java thread, and
+	     * waiting for it to wake us up from threadroot(). Once the new TCB
+	     * wakes us up, it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    carrier.start(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -272,6 +316,16 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Offer our Java thread to the next TCB to start before waking
+	     * the TCB that destroyed us, so that no other TCB can run while we
+	     * touch the pool. The Java thread only picks up a new TCB once
+	     * this one has finished unwinding.
+	     */
+	    if (carrier != null && carrierPool.size() < poolSize) {
+		carrierPool.add(carrier);
+		pooled = true;
+	    }
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,29 +334,47 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * is updated by <tt>contextSwitch()</tt> before we get called. Since
+     * <tt>park()</tt> can return spuriously, we check the flag again each
+     * time it does.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to
+     * this TCB. If the thread has not parked yet, it will see the flag before
+     * it does, or its next <tt>park()</tt> will return immediately.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
+    }
+
+    /**
+     * Create an unstarted JVM thread to run the specified target, as a
+     * virtual thread if <tt>TCB.virtualThreads</tt> is set.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (!virtualThreads)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("cannot create virtual thread");
+	    return null;
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +399,30 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence when they run on virtual threads.
+     */
+    public static final int maxVirtualThreads = 1000000;
+
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, as configured by <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /** Whether JVM threads are created as virtual threads. */
+    private static boolean virtualThreads = false;
+    /** <tt>Thread.ofVirtual()</tt>, if virtual threads are used. */
+    private static Method ofVirtual;
+    /** <tt>Thread.Builder.unstarted()</tt>, if virtual threads are used. */
+    private static Method unstarted;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +445,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -387,8 +478,13 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Writes to this flag hand control from one Java thread to another, so
+     * it is volatile: everything a TCB did before setting it is visible to
+     * the TCB that sees it set.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +496,65 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The carrier running this TCB, or <tt>null</tt> for the first TCB, which
+     * runs on the Java thread that started Nachos.
+     */
+    private Carrier carrier = null;
+    /** Set once this TCB has returned its carrier to the pool. */
+    private boolean pooled = false;
+
+    /**
+     * A Java thread that runs TCBs one after another. A carrier runs the TCB
+     * it was started for, and then, if that TCB returned it to the pool,
+     * parks until <tt>start()</tt> hands it another TCB.
+     */
+    private static class Carrier implements Runnable {
+	/**
+	 * Run the specified TCB on this carrier, starting its Java thread if
+	 * this is the first TCB it runs.
+	 */
+	void start(TCB tcb) {
+	    next = tcb;
+
+	    if (!started) {
+		started = true;
+		thread.start();
+	    }
+	    else {
+		LockSupport.unpark(thread);
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		while (next == null)
+		    LockSupport.park(this);
+
+		TCB tcb = next;
+		next = null;
+
+		tcb.threadroot();
+
+		if (!tcb.pooled)
+		    return;
+	    }
+	}
+
+	Thread thread;
+	private boolean started = false;
+	/** The next TCB to run, handed over by <tt>start()</tt>. */
+	private volatile TCB next = null;
+    }
+
+    /**
+     * The carriers of destroyed TCBs, waiting to run TCBs that start later.
+     * Only the current TCB uses the pool, so it needs no locking.
+     */
+    private static LinkedList<Carrier> carrierPool = new LinkedList<Carrier>();
+    /** The most carriers that can wait in the pool, from <tt>TCB.poolSize</tt>. */
+    private static int poolSize = 0;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
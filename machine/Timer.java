@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing,
@@ -13,6 +17,16 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The kernel can also program a one-shot interrupt for a specific time with
+ * <tt>setAlarm()</tt>, which calls the same interrupt handler. If
+ * <tt>Timer.tickless</tt> is set in the configuration, the periodic
+ * interrupt only occurs while the kernel has armed it with
+ * <tt>setPeriodic()</tt>. A kernel that only arms the periodic interrupt when
+ * it needs to preempt a thread, and programs one-shot interrupts for the
+ * deadlines it is waiting for, takes no interrupts at all while every thread
+ * is blocked.
  */
 public final class Timer {
     /**
@@ -30,6 +44,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+	
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -37,7 +55,11 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	periodic = !tickless;
+
+	if (periodic)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +72,54 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Test whether this timer is in tickless mode, in which the periodic
+     * interrupt must be armed by the kernel.
+     *
+     * @return	<tt>true</tt> if the timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Arm or disarm the periodic timer interrupt. The timer must be in
+     * tickless mode. Arming the interrupt when it is already armed has no
+     * effect, so the first interrupt after arming occurs approximately 500
+     * clock ticks later.
+     *
+     * @param	periodic	<tt>true</tt> to arm the periodic interrupt.
+     */
+    public void setPeriodic(boolean periodic) {
+	Lib.assertTrue(tickless);
+
+	if (periodic == this.periodic)
+	    return;
+
+	this.periodic = periodic;
+
+	if (periodic)
+	    scheduleInterrupt();
+	else
+	    privilege.interrupt.cancel(timerInterrupt);
+    }
+
+    /**
+     * Program a one-shot timer interrupt to occur at the specified time,
+     * replacing any one-shot interrupt that has not yet occurred. If the time
+     * has already passed, the interrupt occurs as soon as possible.
+     *
+     * @param	time	the time at which the interrupt should occur.
+     */
+    public void setAlarm(long time) {
+	if (alarmTime >= 0)
+	    privilege.interrupt.cancel(alarmInterrupt);
+
+	alarmTime = time;
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "alarm",
+				     alarmInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -59,8 +129,56 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Record in the statistics that a thread waiting for the specified time
+     * has been woken now.
+     *
+     * @param	wakeTime	the time the thread was waiting for.
+     */
+    public void recordWakeup(long wakeTime) {
+	Stats stats = privilege.stats;
+	long latency = getTime() - wakeTime;
+
+	stats.numWakeups++;
+	stats.totalWakeLatency += latency;
+	stats.maxWakeLatency = Math.max(stats.maxWakeLatency, latency);
+    }
+
+    /**
+     * Write the time of the last timer interrupt to a checkpoint.
+     *
+     * @param	out	the stream to write the checkpoint to.
+     */
+    void checkpoint(DataOutputStream out) throws IOException {
+	out.writeLong(lastTimerInterrupt);
+	out.writeBoolean(periodic);
+	out.writeLong(alarmTime);
+    }
+
+    /**
+     * Restore the time of the last timer interrupt from a checkpoint.
+     *
+     * @param	buffer	the checkpoint, positioned at the data written by
+     *			<tt>checkpoint()</tt>.
+     */
+    void restoreCheckpoint(ByteBuffer buffer) {
+	lastTimerInterrupt = buffer.getLong();
+	Lib.assertTrue((buffer.get() != 0) == periodic,
+		       "checkpoint has a different timer state");
+	alarmTime = buffer.getLong();
+    }
+
     private void timerInterrupt() {
 	scheduleInterrupt();
+	handleInterrupt();
+    }
+
+    private void alarmInterrupt() {
+	alarmTime = -1;
+	handleInterrupt();
+    }
+
+    private void handleInterrupt() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -82,8 +200,15 @@ public final class Timer {
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable alarmInterrupt;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    /** Whether the periodic interrupt is armed. */
+    private boolean periodic;
+    /** The time of the pending one-shot interrupt, or -1 if none. */
+    private long alarmTime = -1;
 }
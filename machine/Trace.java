@@ -0,0 +1,237 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compact binary record of everything the processors do: each instruction
+ * fetched, each load and store, each exception and interrupt, and each switch
+ * between user threads. Records are collected in a fixed buffer that is
+ * written to the trace file whenever it fills, so recording an event costs a
+ * few byte stores and the trace may grow without bound.
+ *
+ * <p>
+ * An instruction is recorded only once it completes, together with the load
+ * or store it made, so an instruction that is retried after a page fault is
+ * recorded once.
+ *
+ * <p>
+ * Each record is a one-byte tag followed by its operands. Addresses are
+ * stored as the zigzag-encoded difference from the previous address of the
+ * same kind, in a variable-length encoding of 7 bits per byte, so the common
+ * cases (the next sequential instruction, nearby data) take one or two bytes.
+ * See <tt>TraceReplay</tt> for a reader.
+ */
+public final class Trace {
+    /**
+     * Allocate a new trace, writing to the specified file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the file to write the trace to.
+     */
+    public Trace(Privilege privilege, final String fileName) {
+	System.out.print(" trace");
+
+	this.privilege = privilege;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { open(fileName); }
+	    });
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { close(); }
+	    });
+    }
+
+    private void open(String fileName) {
+	try {
+	    file = new RandomAccessFile(new File(fileName), "rw");
+	    file.setLength(0);
+	    channel = file.getChannel();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot open trace file " + fileName);
+	}
+
+	buffer.put(magic);
+	buffer.putInt(version);
+    }
+
+    /**
+     * Write the buffered records to the trace file.
+     */
+    private void flush() {
+	buffer.flip();
+	try {
+	    while (buffer.hasRemaining())
+		channel.write(buffer);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot write trace file");
+	}
+	buffer.clear();
+    }
+
+    /**
+     * Make sure the buffer has room for the largest record.
+     */
+    private void reserve() {
+	if (buffer.remaining() < maxRecordSize)
+	    flush();
+    }
+
+    /**
+     * Record that user code is now running for a different thread. Later
+     * addresses belong to that thread's address space.
+     *
+     * @param	context	a number identifying the thread.
+     */
+    void context(int context) {
+	if (context == lastContext)
+	    return;
+
+	reserve();
+	buffer.put(tagContext);
+	putUnsigned(context);
+	lastContext = context;
+    }
+
+    /**
+     * Record an instruction fetch.
+     *
+     * @param	pc	the virtual address of the instruction.
+     */
+    void fetch(int pc) {
+	reserve();
+	if (pc == lastPC+4) {
+	    buffer.put(tagFetchNext);
+	}
+	else {
+	    buffer.put(tagFetch);
+	    putSigned(pc - lastPC);
+	}
+	lastPC = pc;
+    }
+
+    /**
+     * Record a load or store that was translated successfully.
+     *
+     * @param	vaddr	the virtual address accessed.
+     * @param	size	the size of the access (1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the access is a store.
+     */
+    void access(int vaddr, int size, boolean writing) {
+	reserve();
+	buffer.put((byte) ((writing ? tagStore : tagLoad) | sizeCode(size)));
+	putSigned(vaddr - lastData);
+	lastData = vaddr;
+    }
+
+    /**
+     * Record a CPU exception.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	syscall	the contents of register v0, recorded for syscalls.
+     */
+    void exception(int cause, int syscall) {
+	reserve();
+	buffer.put(tagException);
+	buffer.put((byte) cause);
+	if (cause == Processor.exceptionSyscall)
+	    putUnsigned(syscall);
+    }
+
+    /**
+     * Record the invocation of an interrupt handler.
+     *
+     * @param	time	the simulated time.
+     * @param	type	the type of interrupt.
+     */
+    void interrupt(long time, String type) {
+	reserve();
+	buffer.put(tagInterrupt);
+	putUnsigned(time - lastTime);
+	lastTime = time;
+
+	int length = Math.min(type.length(), maxTypeLength);
+	buffer.put((byte) length);
+	for (int i=0; i<length; i++)
+	    buffer.put((byte) type.charAt(i));
+    }
+
+    /**
+     * Flush the trace and close the trace file.
+     */
+    void close() {
+	if (channel == null)
+	    return;
+
+	buffer.put(tagEnd);
+	flush();
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			file.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	channel = null;
+    }
+
+    private static int sizeCode(int size) {
+	return (size == 1) ? 0 : (size == 2) ? 1 : 2;
+    }
+
+    private void putUnsigned(long value) {
+	while ((value & ~0x7FL) != 0) {
+	    buffer.put((byte) ((value & 0x7F) | 0x80));
+	    value >>>= 7;
+	}
+	buffer.put((byte) value);
+    }
+
+    private void putSigned(int value) {
+	putUnsigned(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private Privilege privilege;
+
+    private RandomAccessFile file;
+    private FileChannel channel = null;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+    private int lastContext = -1;
+    private int lastPC = 0, lastData = 0;
+    private long lastTime = 0;
+
+    /** The first bytes of every trace file. */
+    static final byte[] magic = { 'N', 'T', 'R', 'C' };
+    /** The version of the trace format. */
+    static final int version = 1;
+
+    static final byte
+	tagEnd		= 0x00,
+	tagFetchNext	= 0x01,
+	tagFetch	= 0x02,
+	tagException	= 0x03,
+	tagInterrupt	= 0x04,
+	tagContext	= 0x05,
+	tagLoad		= 0x10,	// | size code
+	tagStore	= 0x14;	// | size code
+
+    private static final int maxTypeLength = 32;
+    private static final int maxRecordSize = 64;
+    private static final int bufferSize = 1 << 16;
+}
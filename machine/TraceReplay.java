@@ -0,0 +1,441 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * An offline tool that reads a trace written by <tt>Trace</tt> and replays
+ * its memory references against models of a cache, a TLB, and a physical
+ * memory managed by a page replacement policy. Nachos itself is not run, so
+ * any number of configurations can be evaluated against the same trace.
+ *
+ * <p>
+ * Addresses in the trace are virtual, so the cache is modelled as virtually
+ * indexed and tagged with the thread context, and pages belong to the
+ * context that touched them.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * java nachos.machine.TraceReplay &lt;trace file&gt;
+ *	[-cache &lt;kilobytes&gt; &lt;line bytes&gt; &lt;ways&gt;]
+ *	[-tlb &lt;entries&gt; fifo|lru|random] [-asid]
+ *	[-frames &lt;frames&gt; fifo|lru|clock]
+ * </pre>
+ */
+public final class TraceReplay {
+    /**
+     * Replay a trace and print the resulting statistics.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.out.print(usage);
+	    System.exit(1);
+	}
+
+	TraceReplay replay = new TraceReplay();
+
+	for (int i=1; i<args.length; ) {
+	    String arg = args[i++];
+	    if (arg.equals("-cache") && i+3 <= args.length) {
+		replay.cache = new Cache(Integer.parseInt(args[i]) * 1024,
+					 Integer.parseInt(args[i+1]),
+					 Integer.parseInt(args[i+2]));
+		i += 3;
+	    }
+	    else if (arg.equals("-tlb") && i+2 <= args.length) {
+		replay.tlb = new Store(Integer.parseInt(args[i]),
+				       policy(args[i+1]));
+		i += 2;
+	    }
+	    else if (arg.equals("-asid")) {
+		replay.asid = true;
+	    }
+	    else if (arg.equals("-frames") && i+2 <= args.length) {
+		replay.memory = new Store(Integer.parseInt(args[i]),
+					  policy(args[i+1]));
+		i += 2;
+	    }
+	    else {
+		System.out.print(usage);
+		System.exit(1);
+	    }
+	}
+
+	replay.replay(new File(args[0]));
+	replay.print();
+    }
+
+    private static int policy(String name) {
+	if (name.equals("fifo"))
+	    return Store.fifo;
+	else if (name.equals("lru"))
+	    return Store.lru;
+	else if (name.equals("random"))
+	    return Store.random;
+	else if (name.equals("clock"))
+	    return Store.clock;
+
+	System.out.print(usage);
+	System.exit(1);
+	return -1;
+    }
+
+    private TraceReplay() {
+    }
+
+    private void replay(File traceFile) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(traceFile, "r");
+	channel = file.getChannel();
+	buffer.limit(0);
+
+	for (int i=0; i<Trace.magic.length; i++) {
+	    if (get() != Trace.magic[i])
+		throw new IOException("not a Nachos trace");
+	}
+	int version = 0;
+	for (int i=0; i<4; i++)
+	    version = (version << 8) | (get() & 0xFF);
+	if (version != Trace.version)
+	    throw new IOException("unsupported trace version");
+
+	int pc = 0, data = 0;
+
+	while (true) {
+	    int tag = get();
+
+	    switch (tag) {
+	    case Trace.tagEnd:
+		file.close();
+		return;
+	    case Trace.tagFetchNext:
+		pc += 4;
+		reference(pc, false);
+		numFetches++;
+		break;
+	    case Trace.tagFetch:
+		pc += getSigned();
+		reference(pc, false);
+		numFetches++;
+		break;
+	    case Trace.tagException:
+		int cause = get();
+		numExceptions[cause]++;
+		if (cause == Processor.exceptionSyscall)
+		    count(syscalls, "syscall " + getUnsigned());
+		break;
+	    case Trace.tagInterrupt:
+		time += getUnsigned();
+		byte[] type = new byte[get()];
+		for (int i=0; i<type.length; i++)
+		    type[i] = get();
+		count(interrupts, new String(type));
+		break;
+	    case Trace.tagContext:
+		context = getUnsigned();
+		numContextSwitches++;
+		if (tlb != null && !asid)
+		    tlb.flush();
+		break;
+	    default:
+		if ((tag & ~0x3) == Trace.tagLoad) {
+		    data += getSigned();
+		    reference(data, false);
+		    numLoads++;
+		}
+		else if ((tag & ~0x3) == Trace.tagStore) {
+		    data += getSigned();
+		    reference(data, true);
+		    numStores++;
+		}
+		else {
+		    throw new IOException("bad trace record " + tag);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Read the next byte of the trace, refilling the buffer from the trace
+     * file when it is empty.
+     */
+    private byte get() throws IOException {
+	if (!buffer.hasRemaining()) {
+	    buffer.clear();
+	    while (buffer.position() == 0) {
+		if (channel.read(buffer) < 0)
+		    throw new IOException("trace ends without an end record");
+	    }
+	    buffer.flip();
+	}
+
+	return buffer.get();
+    }
+
+    /**
+     * Replay one memory reference against every model.
+     */
+    private void reference(int vaddr, boolean writing) {
+	long page = (context << 32) | Processor.pageFromAddress(vaddr);
+
+	if (cache != null)
+	    cache.reference((context << 32) | (vaddr & 0xFFFFFFFFL));
+
+	if (tlb != null)
+	    tlb.reference(page, false);
+
+	if (memory != null)
+	    memory.reference(page, writing);
+    }
+
+    private long getUnsigned() throws IOException {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = get();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private int getSigned() throws IOException {
+	int value = (int) getUnsigned();
+	return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void count(TreeMap<String, Long> counts, String key) {
+	Long count = counts.get(key);
+	counts.put(key, Long.valueOf(count == null ? 1 : count.longValue()+1));
+    }
+
+    private void print() {
+	System.out.println("References: fetches " + numFetches
+			   + ", loads " + numLoads
+			   + ", stores " + numStores);
+	System.out.println("Context switches: " + numContextSwitches);
+	System.out.println("Ticks at last interrupt: " + time);
+
+	for (int i=0; i<numExceptions.length; i++) {
+	    if (numExceptions[i] != 0)
+		System.out.println("Exception " + Processor.exceptionNames[i].trim()
+				   + ": " + numExceptions[i]);
+	}
+	print(syscalls);
+	print(interrupts);
+
+	if (cache != null)
+	    System.out.println("Cache: hits " + cache.hits
+			       + ", misses " + cache.misses);
+	if (tlb != null)
+	    System.out.println("TLB: hits " + tlb.hits
+			       + ", misses " + tlb.misses
+			       + ", evictions " + tlb.evictions);
+	if (memory != null)
+	    System.out.println("Paging: page faults " + memory.misses
+			       + ", evictions " + memory.evictions
+			       + ", dirty evictions " + memory.writebacks);
+    }
+
+    private static void print(TreeMap<String, Long> counts) {
+	for (Map.Entry<String, Long> entry : counts.entrySet())
+	    System.out.println(entry.getKey() + ": " + entry.getValue());
+    }
+
+    /**
+     * A set-associative cache with LRU replacement within each set.
+     */
+    private static class Cache {
+	Cache(int size, int lineSize, int ways) {
+	    Lib.assertTrue(size > 0 && lineSize > 0 && ways > 0 &&
+			   size % (lineSize*ways) == 0);
+
+	    this.lineSize = lineSize;
+	    numSets = size / (lineSize*ways);
+	    tags = new long[numSets][ways];
+	    lastUsed = new long[numSets][ways];
+
+	    for (int i=0; i<numSets; i++)
+		java.util.Arrays.fill(tags[i], -1);
+	}
+
+	void reference(long address) {
+	    long line = address / lineSize;
+	    int set = (int) (line % numSets);
+	    long[] setTags = tags[set];
+	    long[] setUsed = lastUsed[set];
+
+	    now++;
+
+	    int victim = 0;
+	    for (int i=0; i<setTags.length; i++) {
+		if (setTags[i] == line) {
+		    setUsed[i] = now;
+		    hits++;
+		    return;
+		}
+		if (setUsed[i] < setUsed[victim])
+		    victim = i;
+	    }
+
+	    misses++;
+	    setTags[victim] = line;
+	    setUsed[victim] = now;
+	}
+
+	private int lineSize, numSets;
+	private long[][] tags, lastUsed;
+	private long now = 0;
+
+	long hits = 0, misses = 0;
+    }
+
+    /**
+     * A fully associative store of pages, such as a TLB or physical memory,
+     * with a choice of replacement policy. For FIFO and LRU the slots are
+     * kept in a list from the oldest load or use to the newest, so the
+     * victim is always at the head.
+     */
+    private static class Store {
+	Store(int size, int policy) {
+	    Lib.assertTrue(size > 0);
+
+	    this.policy = policy;
+	    keys = new long[size];
+	    referenced = new boolean[size];
+	    dirty = new boolean[size];
+	    prev = new int[size];
+	    next = new int[size];
+	}
+
+	void reference(long key, boolean writing) {
+	    Integer slot = slots.get(key);
+	    if (slot != null) {
+		int i = slot.intValue();
+		if (policy == lru) {
+		    unlink(i);
+		    append(i);
+		}
+		referenced[i] = true;
+		dirty[i] |= writing;
+		hits++;
+		return;
+	    }
+
+	    misses++;
+
+	    int i;
+	    if (used < keys.length) {
+		i = used++;
+	    }
+	    else {
+		i = victim();
+		unlink(i);
+		slots.remove(keys[i]);
+		evictions++;
+		if (dirty[i])
+		    writebacks++;
+	    }
+
+	    keys[i] = key;
+	    referenced[i] = true;
+	    dirty[i] = writing;
+	    append(i);
+	    slots.put(key, Integer.valueOf(i));
+	}
+
+	private int victim() {
+	    switch (policy) {
+	    case random:
+		return generator.nextInt(keys.length);
+	    case clock:
+		while (referenced[hand]) {
+		    referenced[hand] = false;
+		    hand = (hand+1) % keys.length;
+		}
+		int victim = hand;
+		hand = (hand+1) % keys.length;
+		return victim;
+	    default:
+		// oldest load (FIFO) or oldest use (LRU)
+		return head;
+	    }
+	}
+
+	private void unlink(int i) {
+	    if (prev[i] < 0)
+		head = next[i];
+	    else
+		next[prev[i]] = next[i];
+
+	    if (next[i] < 0)
+		tail = prev[i];
+	    else
+		prev[next[i]] = prev[i];
+	}
+
+	private void append(int i) {
+	    prev[i] = tail;
+	    next[i] = -1;
+
+	    if (tail < 0)
+		head = i;
+	    else
+		next[tail] = i;
+	    tail = i;
+	}
+
+	void flush() {
+	    slots.clear();
+	    used = 0;
+	    head = tail = -1;
+	}
+
+	static final int fifo = 0, lru = 1, random = 2, clock = 3;
+
+	private int policy;
+	private long[] keys;
+	private boolean[] referenced, dirty;
+	private int[] prev, next;
+	private int head = -1, tail = -1;
+	private int used = 0, hand = 0;
+	private HashMap<Long, Integer> slots = new HashMap<Long, Integer>();
+	private Random generator = new Random(0);
+
+	long hits = 0, misses = 0, evictions = 0, writebacks = 0;
+    }
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private long context = 0;
+    private long time = 0;
+
+    private Cache cache = null;
+    private Store tlb = null;
+    private Store memory = null;
+    private boolean asid = false;
+
+    private long numFetches = 0, numLoads = 0, numStores = 0;
+    private long numContextSwitches = 0;
+    private long[] numExceptions = new long[Processor.exceptionNames.length];
+    private TreeMap<String, Long> syscalls = new TreeMap<String, Long>();
+    private TreeMap<String, Long> interrupts = new TreeMap<String, Long>();
+
+    private static final String usage =
+	"\n" +
+	"Usage: java nachos.machine.TraceReplay <trace file>\n" +
+	"\t[-cache <kilobytes> <line bytes> <ways>]\n" +
+	"\t[-tlb <entries> fifo|lru|random] [-asid]\n" +
+	"\t[-frames <frames> fifo|lru|clock]\n" +
+	"\n";
+}
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry belongs to. A TLB entry only translates
+     * addresses while the processor's ASID register holds the same value
+     * (see <tt>Processor.setASID()</tt>). Ignored in page tables.
+     */
+    public int asid = 0;
 }
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -10,25 +12,25 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The post office uses a "postal worker" task to take each message that
+ * arrives from the network and place it in the appropriate queue. The task
+ * is scheduled by the receive interrupt handler, and runs before the next
+ * thread switch. Because a task must never block, each queue is a list
+ * guarded by disabling interrupts, with a semaphore counting its messages.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, with a message queue for each port.
+     * Register the interrupt handlers with the network hardware and create
+     * the "postal worker" task.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	queues = new MailQueue[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new MailQueue();
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -39,11 +41,10 @@ public class PostOffice {
 	Machine.networkLink().setInterruptHandlers(receiveHandler,
 						   sendHandler);
 
-	KThread t = new KThread(new Runnable() {
+	postalWorker = new KTask(new Runnable() {
 		public void run() { postalDelivery(); }
 	    });
-
-	t.fork();
+	postalWorker.setName("postal worker");
     }
 
     /**
@@ -58,7 +59,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues[port].removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -67,30 +68,28 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Take the incoming message, and put it in the correct mailbox.
      */
     private void postalDelivery() {
-	while (true) {
-	    messageReceived.P();
-
-	    Packet p = Machine.networkLink().receive();
+	Packet p = Machine.networkLink().receive();
+	if (p == null)
+	    return;
 
-	    MailMessage mail;
+	MailMessage mail;
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+	try {
+	    mail = new MailMessage(p);
+	}
+	catch (MalformedPacketException e) {
+	    return;
+	}
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
-	}
+	// add message to the mailbox and wake a waiting thread
+	queues[mail.dstPort].add(mail);
     }
 
     /**
@@ -98,7 +97,7 @@ public class PostOffice {
      * link.
      */
     private void receiveInterrupt() {
-	messageReceived.V();
+	postalWorker.schedule();
     }
 
     /**
@@ -125,8 +124,37 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
+    /**
+     * A queue of messages that can be added to without blocking.
+     */
+    private static class MailQueue {
+	void add(MailMessage mail) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    list.add(mail);
+	    available.V();
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	MailMessage removeFirst() {
+	    available.P();
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    MailMessage mail = list.removeFirst();
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return mail;
+	}
+
+	private LinkedList<MailMessage> list = new LinkedList<MailMessage>();
+	private Semaphore available = new Semaphore(0);
+    }
+
+    private MailQueue[] queues;
+    private KTask postalWorker;
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
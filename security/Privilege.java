@@ -149,6 +149,15 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel every pending interrupt that would call the specified
+	 * handler.
+	 *
+	 * @param	handler	the interrupt handler whose interrupts should not
+	 *			occur.
+	 */
+	public void cancel(Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +167,37 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of MIPS instructions that can be executed before
+	 * the next pending interrupt is due, if each is charged only with
+	 * <tt>tickUser()</tt>.
+	 *
+	 * @return	the number of instructions that can be executed before an
+	 *		interrupt handler must be invoked.
+	 */
+	public long userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of MIPS
+	 * instructions at once. Has the same effect as calling
+	 * <tt>tick(false)</tt> that many times, provided no interrupt falls
+	 * due.
+	 *
+	 * @param	count	the number of instructions executed. Must not be
+	 *			more than <tt>userTicksUntilDue()</tt>.
+	 */
+	public void tickUser(long count);
+
+	/**
+	 * Advance the simulated time to the last kernel tick before the next
+	 * pending interrupt is due, so that an idle loop reaches the next
+	 * interrupt on its next tick instead of spinning through every tick
+	 * in between. The time skipped is charged as kernel time, exactly as
+	 * if each of those ticks had been spent in the idle loop, and is also
+	 * counted in <tt>Stats.idleTicks</tt>.
+	 */
+	public void idle();
     }
 
     /**
@@ -1,8 +1,5 @@
 package nachos.threads;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -10,11 +7,20 @@ import nachos.machine.*;
  * until a certain time.
  */
 public class Alarm {
-	private LinkedList<wakeup> waitQueue; //creating linked list for wait queue
+	private TimingWheel waitQueue; //sleeping threads, by wake time
+	private boolean precise; //wake threads with one-shot timer interrupts
+	private long alarmTime = -1; //time of the programmed one-shot interrupt, or -1
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
 	 *
+	 * <p>If <tt>Alarm.precise</tt> is set in the configuration, or the timer
+	 * is tickless, the alarm programs a one-shot timer interrupt for the
+	 * earliest wake time, so that sleeping threads are woken as soon as
+	 * their time has passed rather than at the next periodic timer
+	 * interrupt. The time by which each wakeup overshoots is then recorded
+	 * in the machine's statistics.
+	 *
 	 * <p><b>Note</b>: Nachos will not function correctly with more than one
 	 * alarm.
 	 */
@@ -22,7 +28,9 @@ public class Alarm {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
-		waitQueue = new LinkedList<wakeup>();
+		waitQueue = new TimingWheel(Machine.timer().getTime());
+		precise = Config.getBoolean("Alarm.precise", false) ||
+			Machine.timer().isTickless();
 	}
 	/**
      * The timer interrupt handler. This is called by the machine's timer
@@ -31,29 +39,42 @@ public class Alarm {
      * that should be run.
      */
 
-	class wakeup { //make class for thread
-		long wake;
-		KThread waitThread;
-		public wakeup (long wakeTime, KThread wakeThread) {
-			this.wake = wakeTime;
-			this.waitThread = wakeThread;
-		}
-	} 
-
 	public void timerInterrupt() {
 		boolean status = Machine.interrupt().disable(); //turn off interrupt
-		wakeup threadNext; //create threadNext
+		KThread threadNext; //create threadNext
+		long time = Machine.timer().getTime();
 
-		for (Iterator<wakeup> obj = waitQueue.iterator(); obj.hasNext();) {
-			threadNext = (wakeup) obj.next(); //wake up next thread
-			if (Machine.timer().getTime() >= threadNext.wake) { //when thread is ready to wake up
-				obj.remove(); //remove other thread
-				threadNext.waitThread.ready(); //set next thread ready status
-			}	
+		if (alarmTime >= 0 && alarmTime <= time)
+			alarmTime = -1; //one-shot interrupt has occurred, or is about to
+
+		waitQueue.advance(time); //expire every thread whose wake time has passed
+		while ((threadNext = waitQueue.nextExpired()) != null) {
+			if (precise)
+				Machine.timer().recordWakeup(waitQueue.expiredTime());
+			threadNext.ready(); //set next thread ready status
 		}
+		scheduleAlarm();
 		KThread.yield();
 		Machine.interrupt().restore(status); //re-enable interrupt
 	}
+
+	/**
+	 * In precise mode, program a one-shot timer interrupt for the earliest
+	 * wake time in the wait queue, unless one is already programmed for that
+	 * time.
+	 */
+	private void scheduleAlarm() {
+		if (!precise || waitQueue.isEmpty())
+			return;
+
+		long time = waitQueue.nextTime();
+		if (time == alarmTime)
+			return;
+
+		alarmTime = time;
+		Machine.timer().setAlarm(time);
+	}
+
 	/**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -74,9 +95,8 @@ public class Alarm {
 		long wakeTime = Machine.timer().getTime() + x;
 		boolean status = Machine.interrupt().disable(); // disable interrupt
 		
-		wakeup thread = new wakeup(wakeTime, KThread.currentThread());
-
-		waitQueue.add(thread);
+		waitQueue.add(wakeTime, KThread.currentThread());
+		scheduleAlarm();
 
 		KThread.sleep();
 		Machine.interrupt().restore(status); //re-enable interrupt
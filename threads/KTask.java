@@ -0,0 +1,119 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A KTask is a short piece of kernel code that runs to completion without
+ * ever blocking, such as the part of an interrupt handler that can be
+ * deferred. Unlike a <tt>KThread</tt>, a task has no TCB and no stack of its
+ * own: once it has been scheduled, it runs with interrupts disabled on
+ * whichever thread is next about to give up the CPU, before the next thread
+ * to run is chosen.
+ *
+ * <p>
+ * Scheduled tasks wait in a queue allocated by the kernel's scheduler, so
+ * they run in the order the scheduler would choose for threads; with a
+ * priority scheduler, <tt>setPriority()</tt> can be used on a task just as
+ * on a thread. A task is itself a <tt>KThread</tt> only so that it can wait
+ * in such a queue. It must never be forked, and its target must never
+ * yield, sleep, or wait for anything.
+ *
+ * <p>
+ * A task can be scheduled any number of times. Scheduling a task that has
+ * not yet run since it was last scheduled has no effect, so the task runs
+ * once for all of them.
+ */
+public class KTask extends KThread {
+    /**
+     * Allocate a new task.
+     *
+     * @param	target	the object whose <tt>run</tt> method is called each
+     *			time the task runs.
+     */
+    public KTask(Runnable target) {
+	super(false);
+
+	Lib.assertTrue(target != null);
+	this.target = target;
+	setName("(unnamed task)");
+    }
+
+    /**
+     * Tasks cannot be forked. Use <tt>schedule()</tt> instead.
+     */
+    public void fork() {
+	Lib.assertNotReached("tasks cannot be forked");
+    }
+
+    /**
+     * Schedule this task to run before the next thread switch, unless it is
+     * already scheduled.
+     */
+    public void schedule() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!scheduled) {
+	    Lib.debug(dbgTask, "Scheduling task: " + toString());
+
+	    if (taskQueue == null)
+		taskQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	    scheduled = true;
+	    taskQueue.waitForAccess(this);
+	    numScheduled++;
+
+	    KThread.updatePreemption();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether any task is waiting to run.
+     *
+     * @return	<tt>true</tt> if some task has been scheduled but has not yet
+     *		run.
+     */
+    static boolean anyScheduled() {
+	return numScheduled > 0;
+    }
+
+    /**
+     * Run every scheduled task, including any that those tasks schedule.
+     * Interrupts must be disabled.
+     */
+    static void runScheduled() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(!running, "a task cannot yield or sleep");
+
+	if (numScheduled == 0)
+	    return;
+
+	running = true;
+
+	KTask task;
+	while ((task = (KTask) taskQueue.nextThread()) != null) {
+	    numScheduled--;
+	    task.scheduled = false;
+
+	    Lib.debug(dbgTask, "Running task: " + task.toString());
+
+	    task.target.run();
+	}
+
+	running = false;
+
+	KThread.updatePreemption();
+    }
+
+    private static final char dbgTask = 'k';
+
+    private Runnable target;
+    /** Whether this task is waiting in the task queue. */
+    private boolean scheduled = false;
+
+    private static ThreadQueue taskQueue = null;
+    private static int numScheduled = 0;
+    /** Whether scheduled tasks are being run. */
+    private static boolean running = false;
+}
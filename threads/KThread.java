@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -53,12 +55,24 @@ public class KThread {
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
+	    core = 0;
 	    restoreState();
 
 	    createIdleThread();
 	}
     }
 
+    /**
+     * Allocate a new KThread that has no TCB, and so can never be forked.
+     * <tt>KTask</tt> uses this, since a task is only a KThread so that it can
+     * wait in thread queues.
+     *
+     * @param	allocateTCB	must be <tt>false</tt>.
+     */
+    KThread(boolean allocateTCB) {
+	Lib.assertTrue(!allocateTCB && currentThread != null);
+    }
+
     /**
      * Allocate a new KThread.
      *
@@ -94,6 +108,32 @@ public class KThread {
 	return this;
     }
 
+    /**
+     * Bind this thread to the specified processor core. Whenever this thread
+     * runs, that core is the current core. A thread that is not bound before
+     * it is forked is bound to the next core in turn, so forked threads are
+     * spread over all of the cores.
+     *
+     * @param	core	the number of the core to run this thread on.
+     * @return	this thread.
+     */
+    public KThread setCore(int core) {
+	Lib.assertTrue(status == statusNew);
+	Lib.assertTrue(core >= 0 && core < Machine.numCores());
+
+	this.core = core;
+	return this;
+    }
+
+    /**
+     * Get the number of the processor core this thread runs on.
+     *
+     * @return	the core this thread is bound to.
+     */
+    public int getCore() {
+	return core;
+    }
+
     /**
      * Get the name of this thread. This name is used for debugging purposes
      * only.
@@ -142,6 +182,9 @@ public class KThread {
 	Lib.debug(dbgThread,
 		  "Forking thread: " + toString() + " Runnable: " + target);
 
+	if (core == -1)
+	    core = (nextCore++) % Machine.numCores();
+
 	boolean intStatus = Machine.interrupt().disable();
 
 	tcb.start(new Runnable() {
@@ -194,10 +237,12 @@ public class KThread {
 
         currentThread.status = statusFinished;
 
-        if (joinQueue != null) {
-            KThread nextThread = joinQueue.nextThread();
-            nextThread.ready();
-        }
+	LinkedList<KThread> joiners = currentThread.joiners;
+	currentThread.joiners = null;
+	if (joiners != null) {
+	    for (KThread joiner : joiners)
+		joiner.joinFinished(currentThread);
+	}
         
         sleep();
     }
@@ -265,33 +310,131 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+	    updatePreemption();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
     /**
      * Waits for this thread to finish. If this thread is already finished,
-     * return immediately. This method must only be called once; the second
-     * call is not guaranteed to return. This thread must not be the current
-     * thread.
+     * return immediately. Any number of threads can join the same thread, and
+     * a thread can be joined any number of times. This thread must not be
+     * the current thread.
      */
     public void join() {
         Lib.debug(dbgThread, "Joining to thread: " + toString());
-        Lib.assertTrue(this != currentThread);
 
-        boolean intStatus = Machine.interrupt().disable();
-        if (joinQueue == null) {
-            joinQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-	        joinQueue.acquire(this);	  
-        }
-        if (this != currentThread && status != statusFinished && joined == false) {
-            joined = true;
-            joinQueue.waitForAccess(currentThread);
-            sleep();
-        }
-        Machine.interrupt().restore(intStatus);
+	joinAll(this);
+    }
+
+    /**
+     * Waits for every one of the specified threads to finish. The current
+     * thread sleeps once, until the last of them finishes, rather than once
+     * for each thread. None of the threads may be the current thread.
+     *
+     * @param	threads	the threads to wait for.
+     */
+    public static void joinAll(KThread... threads) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int remaining = 0;
+	for (int i=0; i<threads.length; i++) {
+	    Lib.assertTrue(threads[i] != currentThread);
+
+	    if (threads[i].status != statusFinished) {
+		threads[i].addJoiner(currentThread);
+		remaining++;
+	    }
+	}
+
+	if (remaining > 0) {
+	    currentThread.joinRemaining = remaining;
+	    currentThread.joinAny = false;
+	    sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Waits for any one of the specified threads to finish. If one of them is
+     * already finished, return immediately. None of the threads may be the
+     * current thread.
+     *
+     * @param	threads	the threads to wait for. There must be at least one.
+     * @return	a thread that has finished.
+     */
+    public static KThread joinAny(KThread... threads) {
+	Lib.assertTrue(threads.length > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread finished = null;
+	for (int i=0; i<threads.length && finished == null; i++) {
+	    Lib.assertTrue(threads[i] != currentThread);
+
+	    if (threads[i].status == statusFinished)
+		finished = threads[i];
+	}
+
+	if (finished == null) {
+	    for (int i=0; i<threads.length; i++)
+		threads[i].addJoiner(currentThread);
+
+	    currentThread.joinRemaining = threads.length;
+	    currentThread.joinAny = true;
+	    sleep();
+
+	    finished = currentThread.joinedThread;
+	    currentThread.joinedThread = null;
+
+	    // stop waiting for the threads that are still running
+	    for (int i=0; i<threads.length; i++) {
+		if (threads[i].joiners != null) {
+		    // a thread passed more than once was joined once for each
+		    while (threads[i].joiners.remove(currentThread))
+			;
+		}
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return finished;
+    }
+
+    private void addJoiner(KThread thread) {
+	if (joiners == null)
+	    joiners = new LinkedList<KThread>();
+
+	joiners.add(thread);
+    }
+
+    /**
+     * Called by <tt>finish()</tt> on each thread joining the finishing
+     * thread. Wakes this thread once it has nothing left to wait for.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    private void joinFinished(KThread thread) {
+	// a thread in joinAny() waits for nothing once one thread finishes
+	if (joinRemaining == 0)
+	    return;
+
+	if (joinAny) {
+	    joinedThread = thread;
+	    joinRemaining = 0;
+	}
+	else {
+	    joinRemaining--;
+	}
+
+	if (joinRemaining == 0)
+	    ready();
     }
 
     /**
@@ -302,12 +445,23 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * While no other thread is ready, the idle thread skips simulated time
+     * forward to the next pending interrupt rather than yielding once per
+     * tick until it arrives.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (numReady == 0 && !KTask.anyScheduled())
+			Machine.autoGrader().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -317,17 +471,33 @@ public class KThread {
     }
     
     /**
-     * Determine the next thread to run, then dispatch the CPU to the thread
-     * using <tt>run()</tt>.
+     * Run any scheduled tasks, then determine the next thread to run, and
+     * dispatch the CPU to the thread using <tt>run()</tt>.
      */
     private static void runNextThread() {
+	KTask.runScheduled();
+
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else {
+	    numReady--;
+	    updatePreemption();
+	}
 
 	nextThread.run();
     }
 
+    /**
+     * If the timer is tickless, arm its periodic interrupt only while some
+     * thread is waiting in the ready queue or some task is waiting to run,
+     * since the current thread cannot otherwise be preempted.
+     */
+    static void updatePreemption() {
+	if (Machine.timer().isTickless())
+	    Machine.timer().setPeriodic(numReady > 0 || KTask.anyScheduled());
+    }
+
     /**
      * Dispatch the CPU to this thread. Save the state of the current thread,
      * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
@@ -360,6 +530,8 @@ public class KThread {
 
 	currentThread = this;
 
+	Machine.selectCore(core);
+
 	tcb.contextSwitch();
 
 	currentThread.restoreState();
@@ -412,6 +584,38 @@ public class KThread {
 	private int which;
     }
 
+    private static class YieldTest implements Runnable {
+	YieldTest(int yields) {
+	    this.yields = yields;
+	}
+
+	public void run() {
+	    for (int i=0; i<yields; i++)
+		KThread.yield();
+	}
+
+	private int yields;
+    }
+
+    /**
+     * Test that <tt>joinAny()</tt> stops waiting for a thread passed to it
+     * more than once, so that a later join is not ended by that thread.
+     */
+    private static void joinTest() {
+	KThread slow = new KThread(new YieldTest(10)).setName("slow");
+	KThread fast = new KThread(new YieldTest(1)).setName("fast");
+	KThread slower = new KThread(new YieldTest(20)).setName("slower");
+	slow.fork();
+	fast.fork();
+	slower.fork();
+
+	Lib.assertTrue(joinAny(slow, slow, fast) == fast);
+
+	slower.join();
+	Lib.assertTrue(slower.status == statusFinished);
+	Lib.assertTrue(slow.status == statusFinished);
+    }
+
     /**
      * Tests whether this module is working.
      */
@@ -419,6 +623,8 @@ public class KThread {
         Lib.debug(dbgThread, "Enter KThread.selfTest");
         new KThread(new PingTest(1)).setName("forked thread").fork();
         new PingTest(0).run();
+
+	joinTest();
     }
 
     private static final char dbgThread = 't';
@@ -445,6 +651,20 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** The processor core this thread runs on, or -1 if not yet bound. */
+    private int core = -1;
+
+    /**
+     * The threads waiting for this thread to finish, or <tt>null</tt> if
+     * none has joined it yet.
+     */
+    private LinkedList<KThread> joiners = null;
+    /** The number of threads this thread is waiting for in a join. */
+    private int joinRemaining = 0;
+    /** Whether this thread is waiting in <tt>joinAny()</tt>. */
+    private boolean joinAny = false;
+    /** The thread whose finishing ended a <tt>joinAny()</tt>. */
+    private KThread joinedThread = null;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -453,9 +673,11 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    /** The core to bind the next unbound forked thread to. */
+    private static int nextCore = 0;
+    /** The number of threads in the ready queue. */
+    private static int numReady = 0;
 
-    private static boolean joined = false;
-    private static ThreadQueue joinQueue = null;
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
@@ -0,0 +1,232 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A hierarchical timing wheel of threads waiting for a time to pass. Times
+ * are split into groups of 6 bits, and a thread is kept in the wheel for the
+ * most significant group in which its wake time differs from the time the
+ * wheel was last advanced to, in the slot for that group's value. Adding a
+ * thread and expiring it both take constant time, however many threads are
+ * waiting; when the wheel is advanced past the start of a slot in a higher
+ * wheel, the threads in that slot cascade down to lower wheels.
+ *
+ * <p>
+ * Expired threads are kept in FIFO order until they are removed with
+ * <tt>nextExpired()</tt>. The entries that hold threads are reused, so
+ * waiting does not allocate memory once the wheel has grown to the largest
+ * number of threads waiting at once.
+ */
+class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     *
+     * @param	time	the current time.
+     */
+    TimingWheel(long time) {
+	current = time;
+    }
+
+    /**
+     * Add a thread that should expire once the specified time is reached. If
+     * the time has already been reached, the thread expires immediately.
+     *
+     * @param	time	the time at which the thread should expire.
+     * @param	thread	the thread.
+     */
+    void add(long time, KThread thread) {
+	Entry entry = free;
+	if (entry != null)
+	    free = entry.next;
+	else
+	    entry = new Entry();
+
+	entry.time = time;
+	entry.thread = thread;
+
+	insert(entry);
+	numEntries++;
+    }
+
+    /**
+     * Advance the wheel to the specified time, expiring every thread whose
+     * time has been reached.
+     *
+     * @param	time	the current time.
+     */
+    void advance(long time) {
+	if (time <= current)
+	    return;
+
+	// the most significant group in which the times differ
+	int level = (63 - Long.numberOfLeadingZeros(time ^ current)) / bits;
+	int from = group(current, level);
+	int to = group(time, level);
+
+	// every lower wheel only holds times in the groups being passed
+	for (int i=0; i<level; i++) {
+	    while (occupied[i] != 0)
+		expireSlot(i, Long.numberOfTrailingZeros(occupied[i]));
+	}
+
+	current = time;
+
+	long passed = occupied[level] & (-1L << from) & ~(-1L << to);
+	while (passed != 0) {
+	    int slot = Long.numberOfTrailingZeros(passed);
+	    passed &= passed-1;
+	    expireSlot(level, slot);
+	}
+
+	if (level == 0) {
+	    if ((occupied[0] & (1L << to)) != 0)
+		expireSlot(0, to);
+	}
+	else if ((occupied[level] & (1L << to)) != 0) {
+	    // the slot just reached holds times that now fall in lower wheels
+	    Entry entry = slots[level][to];
+	    slots[level][to] = null;
+	    occupied[level] &= ~(1L << to);
+
+	    while (entry != null) {
+		Entry next = entry.next;
+		insert(entry);
+		entry = next;
+	    }
+	}
+    }
+
+    /**
+     * Remove and return the next expired thread.
+     *
+     * @return	the thread that expired first of those not yet removed, or
+     *		<tt>null</tt> if no thread has expired.
+     */
+    KThread nextExpired() {
+	Entry entry = expired;
+	if (entry == null)
+	    return null;
+
+	expired = entry.next;
+	if (expired == null)
+	    lastExpired = null;
+
+	KThread thread = entry.thread;
+	expiredTime = entry.time;
+
+	entry.thread = null;
+	entry.next = free;
+	free = entry;
+	numEntries--;
+
+	return thread;
+    }
+
+    /**
+     * Return the time the thread last returned by <tt>nextExpired()</tt> was
+     * waiting for.
+     *
+     * @return	the time at which that thread expired.
+     */
+    long expiredTime() {
+	return expiredTime;
+    }
+
+    /**
+     * Test whether any thread is in the wheel, whether or not it has
+     * expired.
+     *
+     * @return	<tt>true</tt> if no thread is in the wheel.
+     */
+    boolean isEmpty() {
+	return numEntries == 0;
+    }
+
+    /**
+     * Return the earliest time at which a thread in the wheel expires. The
+     * wheel must not be empty.
+     *
+     * @return	the earliest time at which a thread expires.
+     */
+    long nextTime() {
+	Lib.assertTrue(!isEmpty());
+
+	if (expired != null)
+	    return current;
+
+	// every time in a wheel is earlier than every time in higher wheels
+	int level = 0;
+	while (occupied[level] == 0)
+	    level++;
+
+	Entry entry = slots[level][Long.numberOfTrailingZeros(occupied[level])];
+	long time = entry.time;
+	for (entry = entry.next; entry != null; entry = entry.next)
+	    time = Math.min(time, entry.time);
+
+	return time;
+    }
+
+    private void insert(Entry entry) {
+	entry.next = null;
+
+	if (entry.time <= current) {
+	    if (lastExpired == null)
+		expired = entry;
+	    else
+		lastExpired.next = entry;
+	    lastExpired = entry;
+	    return;
+	}
+
+	int level = (63 - Long.numberOfLeadingZeros(entry.time ^ current)) / bits;
+	int slot = group(entry.time, level);
+
+	entry.next = slots[level][slot];
+	slots[level][slot] = entry;
+	occupied[level] |= 1L << slot;
+    }
+
+    private void expireSlot(int level, int slot) {
+	Entry entry = slots[level][slot];
+	slots[level][slot] = null;
+	occupied[level] &= ~(1L << slot);
+
+	while (entry != null) {
+	    Entry next = entry.next;
+	    entry.next = null;
+	    if (lastExpired == null)
+		expired = entry;
+	    else
+		lastExpired.next = entry;
+	    lastExpired = entry;
+	    entry = next;
+	}
+    }
+
+    private static int group(long time, int level) {
+	return (int) (time >>> (level*bits)) & (slotsPerLevel-1);
+    }
+
+    private static class Entry {
+	long time;
+	KThread thread;
+	Entry next;
+    }
+
+    private static final int bits = 6;
+    private static final int slotsPerLevel = 1 << bits;
+    private static final int numLevels = (64 + bits-1) / bits;
+
+    /** The time the wheel was last advanced to. */
+    private long current;
+    private int numEntries = 0;
+
+    private Entry[][] slots = new Entry[numLevels][slotsPerLevel];
+    /** For each wheel, a bitmap of the slots that are not empty. */
+    private long[] occupied = new long[numLevels];
+
+    private Entry expired = null, lastExpired = null;
+    private Entry free = null;
+    private long expiredTime = 0;
+}
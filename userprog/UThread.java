@@ -28,6 +28,8 @@ public class UThread extends KThread {
 	process.initRegisters();
 	process.restoreState();
 
+	// the threads of a process share one execution profile
+	Machine.processor().setProfileKey(process);
 	Machine.processor().run();
 	
 	Lib.assertNotReached();
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,17 +19,51 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, sets the
+     * exception handler of every processor core, and fills the list of free
+     * physical pages. If the machine has a checkpoint device, the free list
+     * is included in every checkpoint.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
 	
-	Machine.processor().setExceptionHandler(new Runnable() {
+	Runnable handler = new Runnable() {
 		public void run() { exceptionHandler(); }
-	    });
+	    };
+	for (int i=0; i<Machine.numCores(); i++)
+	    Machine.processor(i).setExceptionHandler(handler);
+
+	availablePages = new LinkedList<Integer>();
+	for (int i=0; i<Machine.processor().getNumPhysPages(); i++)
+	    availablePages.add(i);
+	lock = new Lock();
+
+	if (Machine.checkpoint() != null) {
+	    Machine.checkpoint().addState("UserKernel", new Checkpoint.State() {
+		    public byte[] save() { return saveFreePages(); }
+		    public void restore(byte[] state) {
+			restoreFreePages(state);
+		    }
+		});
+	}
+    }
+
+    private static byte[] saveFreePages() {
+	ByteBuffer state = ByteBuffer.allocate(4 * (availablePages.size()+1));
+	state.putInt(availablePages.size());
+	for (Integer ppn : availablePages)
+	    state.putInt(ppn);
+
+	return state.array();
+    }
+
+    private static void restoreFreePages(byte[] saved) {
+	ByteBuffer state = ByteBuffer.wrap(saved);
+	availablePages.clear();
+	for (int i=state.getInt(); i>0; i--)
+	    availablePages.add(state.getInt());
     }
 
     /**
@@ -92,6 +129,8 @@ public class UserKernel extends ThreadedKernel {
     public void run() {
 	super.run();
 
+	checkpoint();
+
 	UserProcess process = UserProcess.newUserProcess();
 	
 	String shellProgram = Machine.getShellProgramName();	
@@ -100,6 +139,26 @@ public class UserKernel extends ThreadedKernel {
 	KThread.currentThread().finish();
     }
 
+    /**
+     * The boot point at which the kernel is checkpointed. If the
+     * <tt>UserKernel.checkpoint</tt> key names a file, the machine is
+     * restored from that file, or saved to it if the file does not exist.
+     * No process exists yet, so every page is free and the only thread is
+     * the one running the kernel.
+     */
+    protected void checkpoint() {
+	String fileName = Config.getString("UserKernel.checkpoint", null);
+	if (fileName == null || Machine.checkpoint() == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!Machine.checkpoint().restore(fileName))
+	    Machine.checkpoint().save(fileName);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
@@ -110,6 +169,11 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The physical pages not allocated to any process. */
+    public static LinkedList<Integer> availablePages;
+    /** Protects <tt>availablePages</tt>. */
+    public static Lock lock;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -153,7 +154,7 @@ public class UserProcess {
         }
         
 
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
         
         int fvpage = Machine.processor().pageFromAddress(vaddr);
         int lvpage = Machine.processor().pageFromAddress(end);
@@ -192,7 +193,8 @@ public class UserProcess {
             }
 
             int fpaddress = Machine.processor().makeAddress(pageTable[i].ppn, voffset);
-            System.arraycopy(memory, fpaddress, data, offset+bytesTrans, poffset-voffset);
+            memory.position(fpaddress);
+            memory.get(data, offset+bytesTrans, poffset-voffset);
 
             bytesTrans += (offset2-offset1);
             pageTable[i].used = true;
@@ -233,7 +235,7 @@ public class UserProcess {
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
 	
     int end = vaddr + length;
 
@@ -282,7 +284,8 @@ public class UserProcess {
         }
 
         int fpaddress = Machine.processor().makeAddress(pageTable[i].ppn, voffset);
-        System.arraycopy(data, offset+bytesTrans, memory, fpaddress, poffset - voffset);
+        memory.position(fpaddress);
+        memory.put(data, offset+bytesTrans, poffset - voffset);
 
         bytesTrans += (offset2-offset1);
         pageTable[i].used = true;
@@ -488,6 +491,7 @@ public class UserProcess {
  			pprocess.cprocesses.remove(this);
  		}
  		unloadSections();
+ 		Machine.processor().releaseProfile(this);
  		if (pid == 0) {
  			Kernel.kernel.terminate(); //root exiting
  		} else {
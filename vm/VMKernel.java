@@ -17,10 +17,20 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. If the machine has a checkpoint device, the
+     * address-space identifier allocator is included in every checkpoint.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	if (Machine.checkpoint() != null) {
+	    Machine.checkpoint().addState("VMKernel", new Checkpoint.State() {
+		    public byte[] save() { return VMProcess.saveASIDs(); }
+		    public void restore(byte[] state) {
+			VMProcess.restoreASIDs(state);
+		    }
+		});
+	}
     }
 
     /**
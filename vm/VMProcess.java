@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -26,10 +28,69 @@ public class VMProcess extends UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a TLB, selects this process's
+     * address-space identifier instead of flushing the TLB, so entries left
+     * by earlier time slices can still hit. Without one, installs the page
+     * table as <tt>UserProcess</tt> does.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	if (asidGeneration != currentASIDGeneration)
+	    assignASID();
+
+	Machine.processor().setASID(asid);
+    }
+
+    /**
+     * Return the address-space identifier of this process. TLB entries for
+     * this process must carry it in <tt>TranslationEntry.asid</tt>.
+     *
+     * @return	the address-space identifier of this process.
+     */
+    protected int getASID() {
+	return asid;
+    }
+
+    /**
+     * Return the state of the address-space identifier allocator, for a
+     * checkpoint.
+     */
+    static byte[] saveASIDs() {
+	return ByteBuffer.allocate(8).putInt(nextASID)
+	    .putInt(currentASIDGeneration).array();
+    }
+
+    /**
+     * Replace the state of the address-space identifier allocator with one
+     * returned by <tt>saveASIDs()</tt>.
+     */
+    static void restoreASIDs(byte[] saved) {
+	ByteBuffer state = ByteBuffer.wrap(saved);
+	nextASID = state.getInt();
+	currentASIDGeneration = state.getInt();
+    }
+
+    /**
+     * Give this process an identifier that no TLB entry holds. When the
+     * identifiers run out, every TLB is flushed and all of them are recycled;
+     * the other processes notice that their identifiers are stale the next
+     * time they run.
+     */
+    private void assignASID() {
+	if (nextASID == Processor.numASIDs) {
+	    for (int core=0; core<Machine.numCores(); core++)
+		Machine.processor(core).flushTLB();
+
+	    nextASID = 1;
+	    currentASIDGeneration++;
+	}
+
+	asid = nextASID++;
+	asidGeneration = currentASIDGeneration;
     }
 
     /**
@@ -67,6 +128,16 @@ public class VMProcess extends UserProcess {
 	}
     }
 	
+    /** This process's address-space identifier, if it is current. */
+    private int asid;
+    /** The generation of identifiers <tt>asid</tt> was assigned in. */
+    private int asidGeneration = -1;
+
+    /** The next address-space identifier to assign. 0 is never assigned. */
+    private static int nextASID = 1;
+    /** Incremented every time all identifiers are recycled. */
+    private static int currentASIDGeneration = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';